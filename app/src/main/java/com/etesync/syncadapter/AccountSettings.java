@@ -72,6 +72,12 @@ public class AccountSettings {
      */
     private final static String KEY_CONTACT_GROUP_METHOD = "contact_group_method";
 
+    /* Whether the collections of a service type were saved, but the local collections haven't been updated yet
+       (key is suffixed with the service type)
+       value = null (not existing)     refresh completed (default)
+               "1"                     refresh pending */
+    private final static String KEY_COLLECTIONS_REFRESH_PENDING = "collections_refresh_pending_";
+
     public final static long SYNC_INTERVAL_MANUALLY = -1;
 
     final Context context;
@@ -103,6 +109,14 @@ public class AccountSettings {
         }
     }
 
+    /**
+     * Returns the settings of the account as read now, so a sync doesn't have to ask the account manager (a binder
+     * call) on every access. Meant to be taken at the start of a sync and passed down. See {@link Snapshot}.
+     */
+    public static AccountSettings getSnapshot(@NonNull Context context, @NonNull Account account) throws InvalidAccountException {
+        return new Snapshot(context.getApplicationContext(), account);
+    }
+
     // XXX: Workaround a bug in Android where passing a bundle to addAccountExplicitly doesn't work.
     public static void setUserData(AccountManager accountManager, Account account, URI uri, String userName) {
         accountManager.setUserData(account, KEY_SETTINGS_VERSION, String.valueOf(CURRENT_VERSION));
@@ -221,6 +235,17 @@ public class AccountSettings {
     }
 
 
+    // collections
+
+    public boolean getCollectionsRefreshPending(@NonNull CollectionInfo.Type serviceType) {
+        return accountManager.getUserData(account, KEY_COLLECTIONS_REFRESH_PENDING + serviceType.name()) != null;
+    }
+
+    public void setCollectionsRefreshPending(@NonNull CollectionInfo.Type serviceType, boolean pending) {
+        accountManager.setUserData(account, KEY_COLLECTIONS_REFRESH_PENDING + serviceType.name(), pending ? "1" : null);
+    }
+
+
     // CardDAV settings
 
     @NonNull
@@ -237,6 +262,84 @@ public class AccountSettings {
     }
 
 
+    /**
+     * Settings of an account as read when it was created. The getters don't ask the account manager again, and
+     * the key pair is only parsed once. Setters write through, but don't change this snapshot.
+     */
+    static class Snapshot extends AccountSettings {
+        private final URI uri;
+        private final String authToken;
+        private final Crypto.AsymmetricKeyPair keyPair;
+        private final String username;
+        private final String password;
+        private final boolean syncWifiOnly;
+        private final String syncWifiOnlySSID;
+        private final boolean manageCalendarColors;
+        private final GroupMethod groupMethod;
+
+        Snapshot(@NonNull Context context, @NonNull Account account) throws InvalidAccountException {
+            super(context, account);
+
+            uri = super.getUri();
+            authToken = super.getAuthToken();
+            keyPair = super.getKeyPair();
+            username = super.username();
+            password = super.password();
+            syncWifiOnly = super.getSyncWifiOnly();
+            syncWifiOnlySSID = super.getSyncWifiOnlySSID();
+            manageCalendarColors = super.getManageCalendarColors();
+            groupMethod = super.getGroupMethod();
+        }
+
+        @Override
+        public URI getUri() {
+            return uri;
+        }
+
+        @Override
+        public String getAuthToken() {
+            return authToken;
+        }
+
+        @Override
+        public Crypto.AsymmetricKeyPair getKeyPair() {
+            return keyPair;
+        }
+
+        @Override
+        public String username() {
+            return username;
+        }
+
+        @Override
+        public String password() {
+            return password;
+        }
+
+        @Override
+        public boolean getSyncWifiOnly() {
+            return syncWifiOnly;
+        }
+
+        @Nullable
+        @Override
+        public String getSyncWifiOnlySSID() {
+            return syncWifiOnlySSID;
+        }
+
+        @Override
+        public boolean getManageCalendarColors() {
+            return manageCalendarColors;
+        }
+
+        @NonNull
+        @Override
+        public GroupMethod getGroupMethod() {
+            return groupMethod;
+        }
+    }
+
+
     // update from previous account settings
 
     private void update(int fromVersion) {
@@ -40,6 +40,7 @@ import android.widget.Toast;
 import com.etesync.syncadapter.log.LogcatHandler;
 import com.etesync.syncadapter.log.PlainTextFormatter;
 import com.etesync.syncadapter.model.CollectionInfo;
+import com.etesync.syncadapter.model.EntryIndex;
 import com.etesync.syncadapter.model.JournalEntity;
 import com.etesync.syncadapter.model.Models;
 import com.etesync.syncadapter.model.ServiceDB;
@@ -151,6 +152,24 @@ public class App extends Application {
     @SuppressLint("HardwareIds")
     public void onCreate() {
         super.onCreate();
+        Settings.getInstance(this).addOnChangeListener(new Settings.OnChangeListener() {
+            @Override
+            public void onSettingChanged(@NonNull String name) {
+                switch (name) {
+                    case DISTRUST_SYSTEM_CERTIFICATES:
+                        reinitCertManager();
+                        break;
+                    case LOG_TO_EXTERNAL_STORAGE:
+                        reinitLogger();
+                        break;
+                    case OVERRIDE_PROXY:
+                    case OVERRIDE_PROXY_HOST:
+                    case OVERRIDE_PROXY_PORT:
+                        HttpClient.reinit();
+                        break;
+                }
+            }
+        });
         reinitCertManager();
         reinitLogger();
         StrictMode.enableDefaults();
@@ -173,13 +192,10 @@ public class App extends Application {
     }
 
     private void loadLanguage() {
-        ServiceDB.OpenHelper serviceDB = new ServiceDB.OpenHelper(this);
-        String lang = new Settings(serviceDB.getReadableDatabase()).getString(App.FORCE_LANGUAGE, null);
+        String lang = Settings.getInstance(this).getString(App.FORCE_LANGUAGE, null);
         if (lang != null && !lang.equals(DEFAULT_LANGUAGE)) {
             LanguageUtils.setLanguage(this, lang);
         }
-
-        serviceDB.close();
     }
 
     public void reinitCertManager() {
@@ -187,20 +203,34 @@ public class App extends Application {
             if (certManager != null)
                 certManager.close();
 
-            ServiceDB.OpenHelper dbHelper = new ServiceDB.OpenHelper(this);
-            Settings settings = new Settings(dbHelper.getReadableDatabase());
+            Settings settings = Settings.getInstance(this);
 
             certManager = new CustomCertManager(this, !settings.getBoolean(DISTRUST_SYSTEM_CERTIFICATES, false));
-            sslSocketFactoryCompat = new SSLSocketFactoryCompat(certManager);
+            sslSocketFactoryCompat = new SSLSocketFactoryCompat(certManager, getSslSessionCacheDir());
             hostnameVerifier = certManager.hostnameVerifier(OkHostnameVerifier.INSTANCE);
 
-            dbHelper.close();
+            // shared clients still reference the old socket factory
+            HttpClient.reinit();
         }
     }
 
+    /**
+     * Forgets all TLS sessions, so connections have to verify the certificates again. Has to be called
+     * whenever (previously) trusted certificates get distrusted.
+     */
+    public void clearSslSessionCache() {
+        if (sslSocketFactoryCompat != null)
+            sslSocketFactoryCompat.clearSessionCache();
+        else
+            SSLSocketFactoryCompat.clearSessionCache(getSslSessionCacheDir());
+    }
+
+    private File getSslSessionCacheDir() {
+        return new File(getCacheDir(), "ssl_sessions");
+    }
+
     public void reinitLogger() {
-        ServiceDB.OpenHelper dbHelper = new ServiceDB.OpenHelper(this);
-        Settings settings = new Settings(dbHelper.getReadableDatabase());
+        Settings settings = Settings.getInstance(this);
 
         boolean logToFile = settings.getBoolean(LOG_TO_EXTERNAL_STORAGE, false),
                 logVerbose = logToFile || Log.isLoggable(log.getName(), Log.DEBUG);
@@ -256,8 +286,6 @@ public class App extends Application {
             nm.notify(Constants.NOTIFICATION_EXTERNAL_FILE_LOGGING, builder.build());
         } else
             nm.cancel(Constants.NOTIFICATION_EXTERNAL_FILE_LOGGING);
-
-        dbHelper.close();
     }
 
     @Nullable
@@ -275,18 +303,52 @@ public class App extends Application {
     public static class ReinitSettingsReceiver extends BroadcastReceiver {
 
         public static final String ACTION_REINIT_SETTINGS = BuildConfig.APPLICATION_ID + ".REINIT_SETTINGS";
+        /* Whether certificates have been distrusted, so TLS sessions negotiated before mustn't be resumed */
+        private static final String EXTRA_RESET_TRUST = "reset_trust";
+
+        /**
+         * Has the :sync process reload the settings. Sent explicitly, as implicit broadcasts don't reach manifest
+         * receivers since Android 8.
+         */
+        public static void send(Context context) {
+            send(context, false);
+        }
+
+        /**
+         * @param resetTrust whether the :sync process has to forget its TLS sessions and reload the trusted
+         *                   certificates, too
+         */
+        public static void send(Context context, boolean resetTrust) {
+            Intent intent = new Intent(ACTION_REINIT_SETTINGS);
+            intent.setClass(context, ReinitSettingsReceiver.class);
+            intent.putExtra(EXTRA_RESET_TRUST, resetTrust);
+            context.sendBroadcast(intent);
+        }
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            log.info("Received broadcast: re-initializing settings (logger/cert manager)");
+            log.info("Received broadcast: reloading settings");
+            App app = (App) context.getApplicationContext();
+
+            boolean resetTrust = intent.getBooleanExtra(EXTRA_RESET_TRUST, false);
+            if (resetTrust)
+                // before anything else can resume them
+                app.clearSslSessionCache();
+
+            // Listeners re-initialize whatever depends on changed settings (logger/cert manager/HTTP clients)
+            Settings.getInstance(context).reload();
 
-            App app = (App)context.getApplicationContext();
-            app.reinitLogger();
+            if (resetTrust) {
+                // certificates may have been reset without any setting changing, this also rebuilds the clients
+                app.reinitCertManager();
+                HttpClient.reinit();
+            }
         }
 
     }
 
     private EntityDataStore<Persistable> dataStore;
+    private DatabaseSource dataSource;
 
     /**
      * @return {@link EntityDataStore} single instance for the application.
@@ -297,18 +359,39 @@ public class App extends Application {
     public EntityDataStore<Persistable> getData() {
         if (dataStore == null) {
             // override onUpgrade to handle migrating to a new version
-            DatabaseSource source = new MyDatabaseSource(this, Models.DEFAULT, 4);
-            Configuration configuration = source.getConfiguration();
+            dataSource = new MyDatabaseSource(this, Models.DEFAULT, 11);
+            Configuration configuration = dataSource.getConfiguration();
             dataStore = new EntityDataStore<>(configuration);
         }
         return dataStore;
     }
 
+    /**
+     * @return the database behind {@link #getData()}, for maintenance which requery doesn't cover (like vacuuming).
+     */
+    public SQLiteDatabase getWritableDatabase() {
+        getData();
+        return dataSource.getWritableDatabase();
+    }
+
     private static class MyDatabaseSource extends DatabaseSource {
         MyDatabaseSource(Context context, EntityModel entityModel, int version) {
             super(context, entityModel, version);
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            super.onConfigure(db);
+            // Only takes effect on new databases, before any table is created (see JournalCompactor)
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            super.onCreate(db);
+            EntryIndex.createTable(db);
+        }
+
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             super.onUpgrade(db, oldVersion, newVersion);
@@ -317,10 +400,11 @@ public class App extends Application {
                 db.execSQL("PRAGMA foreign_keys=OFF;");
 
                 db.execSQL("CREATE TABLE new_Journal (id integer primary key autoincrement not null, deleted boolean not null, encryptedKey varbinary(255), info varchar(255), owner varchar(255), service integer, serviceModel integer, uid varchar(64) not null, readOnly boolean default false, foreign key (serviceModel) references Service (id) on delete cascade);");
-                db.execSQL("CREATE TABLE new_Entry (id integer primary key autoincrement not null, content varchar(255), journal integer, uid varchar(64) not null, foreign key (journal) references new_Journal (id) on delete cascade);");
+                // Has to include the columns which super just added for the current version, they're filled in later
+                db.execSQL("CREATE TABLE new_Entry (id integer primary key autoincrement not null, content varchar(255), journal integer, uid varchar(64) not null, resourceUid varchar(255), action varchar(255), summary varchar(255), foreign key (journal) references new_Journal (id) on delete cascade);");
 
                 db.execSQL("INSERT INTO new_Journal SELECT id, deleted, encryptedKey, info, owner, service, serviceModel, uid, 0 from Journal;");
-                db.execSQL("INSERT INTO new_Entry SELECT id, content, journal, uid from Entry;");
+                db.execSQL("INSERT INTO new_Entry (id, content, journal, uid) SELECT id, content, journal, uid from Entry;");
 
                 db.execSQL("DROP TABLE Journal;");
                 db.execSQL("DROP TABLE Entry;");
@@ -331,6 +415,27 @@ public class App extends Application {
                 db.execSQL("CREATE UNIQUE INDEX entry_unique_together on Entry (journal, uid);");
                 db.execSQL("PRAGMA foreign_keys=ON;");
             }
+
+            if (oldVersion < 5) {
+                // The JournalMeta table has just been created by super, fill it from the existing entries
+                db.execSQL("INSERT INTO JournalMeta (journal, entryCount, lastUid, firstSync, lastSync, bytesStored, addCount, changeCount, deleteCount) " +
+                        "SELECT journal, COUNT(*), (SELECT e.uid FROM Entry AS e WHERE e.journal = Entry.journal ORDER BY e.id DESC LIMIT 1), 0, 0, " +
+                        "SUM(LENGTH(CAST(content AS BLOB))), " +
+                        "SUM(content LIKE '%\"action\":\"ADD\"%'), SUM(content LIKE '%\"action\":\"CHANGE\"%'), SUM(content LIKE '%\"action\":\"DELETE\"%') " +
+                        "FROM Entry WHERE journal IS NOT NULL GROUP BY journal;");
+            }
+
+            // Version 6 compressed the entries, existing ones are rewritten in the background after the next sync
+
+            // Version 7 added the retention policy, existing journals keep their whole history unless configured
+            if (oldVersion < 8) {
+                // The new columns are added by the schema updater, they are filled in on the next sync
+                db.execSQL("CREATE INDEX IF NOT EXISTS entry_resource_uid ON Entry (journal, resourceUid);");
+            }
+            if (oldVersion < 9) {
+                // Filled in the background after the next sync
+                EntryIndex.createTable(db);
+            }
         }
     }
 
@@ -9,21 +9,23 @@
 package com.etesync.syncadapter;
 
 import android.content.Context;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.etesync.syncadapter.model.ServiceDB;
 import com.etesync.syncadapter.model.Settings;
 
+import org.apache.commons.lang3.ObjectUtils;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,9 +37,21 @@ import okhttp3.Response;
 import okhttp3.logging.HttpLoggingInterceptor;
 
 public class HttpClient {
+    /* All clients are derived from this one, so they share its connection pool and dispatcher. */
     private static final OkHttpClient client = new OkHttpClient();
     private static final UserAgentInterceptor userAgentInterceptor = new UserAgentInterceptor();
 
+    private static final int MAX_CACHED_CLIENTS = 8;
+    private static final Map<ClientKey, OkHttpClient> clientCache = new LinkedHashMap<ClientKey, OkHttpClient>(MAX_CACHED_CLIENTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ClientKey, OkHttpClient> eldest) {
+            return size() > MAX_CACHED_CLIENTS;
+        }
+    };
+
+    private static boolean proxyLoaded = false;
+    private static Proxy proxy = null;
+
     private static final String userAgent;
 
     static {
@@ -49,12 +63,30 @@ public class HttpClient {
     }
 
     public static OkHttpClient create(@Nullable Context context, @NonNull final Logger logger, @Nullable String host, @NonNull String token) {
+        // Only clients using the app logger are shared, custom loggers are usually short-lived
+        ClientKey key = null;
+        if ((context != null) && (logger == App.log)) {
+            key = new ClientKey(host, token, getProxy(context), App.getSslSocketFactoryCompat(), logger.isLoggable(Level.FINEST));
+            synchronized (clientCache) {
+                OkHttpClient cached = clientCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+
         OkHttpClient.Builder builder = defaultBuilder(context, logger);
 
         // use account settings for authentication
         builder = addAuthentication(builder, host, token);
 
-        return builder.build();
+        OkHttpClient ret = builder.build();
+        if (key != null) {
+            synchronized (clientCache) {
+                clientCache.put(key, ret);
+            }
+        }
+        return ret;
     }
 
     public static OkHttpClient create(@Nullable Context context, @NonNull AccountSettings settings, @NonNull final Logger logger) {
@@ -62,7 +94,7 @@ public class HttpClient {
     }
 
     public static OkHttpClient create(@NonNull Context context, @NonNull Logger logger) {
-        return defaultBuilder(context, logger).build();
+        return create(context, logger, null, null);
     }
 
     public static OkHttpClient create(@NonNull Context context, @NonNull AccountSettings settings) {
@@ -77,6 +109,47 @@ public class HttpClient {
         return create(context, App.log, uri.getHost(), authToken);
     }
 
+    /**
+     * Drops all shared clients and the cached proxy settings. Has to be called whenever the
+     * proxy or certificate settings change, so the next {@link #create} picks them up.
+     */
+    public static void reinit() {
+        synchronized (clientCache) {
+            clientCache.clear();
+            proxyLoaded = false;
+            proxy = null;
+        }
+    }
+
+    @Nullable
+    private static Proxy getProxy(@NonNull Context context) {
+        synchronized (clientCache) {
+            if (!proxyLoaded) {
+                proxy = loadProxy(context);
+                proxyLoaded = true;
+            }
+            return proxy;
+        }
+    }
+
+    @Nullable
+    private static Proxy loadProxy(@NonNull Context context) {
+        try {
+            Settings settings = Settings.getInstance(context);
+            if (settings.getBoolean(App.OVERRIDE_PROXY, false)) {
+                InetSocketAddress address = new InetSocketAddress(
+                        settings.getString(App.OVERRIDE_PROXY_HOST, App.OVERRIDE_PROXY_HOST_DEFAULT),
+                        settings.getInt(App.OVERRIDE_PROXY_PORT, App.OVERRIDE_PROXY_PORT_DEFAULT)
+                );
+
+                return new Proxy(Proxy.Type.HTTP, address);
+            }
+        } catch (IllegalArgumentException | NullPointerException e) {
+            App.log.log(Level.SEVERE, "Can't set proxy, ignoring", e);
+        }
+        return null;
+    }
+
 
     private static OkHttpClient.Builder defaultBuilder(@Nullable Context context, @NonNull final Logger logger) {
         OkHttpClient.Builder builder = client.newBuilder();
@@ -97,23 +170,10 @@ public class HttpClient {
 
         // custom proxy support
         if (context != null) {
-            SQLiteOpenHelper dbHelper = new ServiceDB.OpenHelper(context);
-            try {
-                Settings settings = new Settings(dbHelper.getReadableDatabase());
-                if (settings.getBoolean(App.OVERRIDE_PROXY, false)) {
-                    InetSocketAddress address = new InetSocketAddress(
-                            settings.getString(App.OVERRIDE_PROXY_HOST, App.OVERRIDE_PROXY_HOST_DEFAULT),
-                            settings.getInt(App.OVERRIDE_PROXY_PORT, App.OVERRIDE_PROXY_PORT_DEFAULT)
-                    );
-
-                    Proxy proxy = new Proxy(Proxy.Type.HTTP, address);
-                    builder.proxy(proxy);
-                    App.log.log(Level.INFO, "Using proxy", proxy);
-                }
-            } catch (IllegalArgumentException | NullPointerException e) {
-                App.log.log(Level.SEVERE, "Can't set proxy, ignoring", e);
-            } finally {
-                dbHelper.close();
+            Proxy proxy = getProxy(context);
+            if (proxy != null) {
+                builder.proxy(proxy);
+                App.log.log(Level.INFO, "Using proxy", proxy);
             }
         }
 
@@ -141,6 +201,37 @@ public class HttpClient {
         return builder.addNetworkInterceptor(authHandler);
     }
 
+    private static class ClientKey {
+        final String host, token;
+        final Proxy proxy;
+        final Object sslSocketFactory;
+        final boolean verbose;
+
+        ClientKey(String host, String token, Proxy proxy, Object sslSocketFactory, boolean verbose) {
+            this.host = host;
+            this.token = token;
+            this.proxy = proxy;
+            this.sslSocketFactory = sslSocketFactory;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return ObjectUtils.equals(host, other.host) && ObjectUtils.equals(token, other.token) &&
+                    ObjectUtils.equals(proxy, other.proxy) &&
+                    (sslSocketFactory == other.sslSocketFactory) && (verbose == other.verbose);
+        }
+
+        @Override
+        public int hashCode() {
+            return ObjectUtils.hashCodeMulti(host, token, proxy, System.identityHashCode(sslSocketFactory), verbose);
+        }
+    }
+
     private static class TokenAuthenticator implements Interceptor {
         protected static final String
                 HEADER_AUTHORIZATION = "Authorization";
@@ -8,27 +8,46 @@
 
 package com.etesync.syncadapter;
 
+import android.net.SSLSessionCache;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509TrustManager;
 
 public class SSLSocketFactoryCompat extends SSLSocketFactory {
+    /* sessions older than that are neither resumed nor kept on disk */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+    private static final int SESSION_CACHE_SIZE = 32;
+
+    private static final HandshakeStatistics statistics = new HandshakeStatistics();
 
     private SSLSocketFactory delegate;
+    private SSLSessionContext sessionContext;
+    private File sessionCacheDir;
 
     // Android 5.0+ (API level21) provides reasonable default settings
     // but it still allows SSLv3
@@ -97,21 +116,159 @@ public class SSLSocketFactoryCompat extends SSLSocketFactory {
     }
 
     public SSLSocketFactoryCompat(@NonNull X509TrustManager trustManager) {
+        this(trustManager, null);
+    }
+
+    /**
+     * @param sessionCacheDir directory to persist TLS sessions in, so they can be resumed after the
+     *                        process has been restarted (null for an in-memory cache only)
+     */
+    public SSLSocketFactoryCompat(@NonNull X509TrustManager trustManager, @Nullable File sessionCacheDir) {
         try {
             SSLContext sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, new X509TrustManager[] { trustManager }, null);
+
+            sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+                sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            }
+            if (sessionCacheDir != null)
+                installSessionCache(sslContext, sessionCacheDir);
+
             delegate = sslContext.getSocketFactory();
         } catch (GeneralSecurityException e) {
             throw new AssertionError(); // The system has no TLS. Just give up.
         }
     }
 
+    private void installSessionCache(SSLContext sslContext, File dir) {
+        pruneSessionCache(dir);
+        try {
+            /* SSLSessionCache.install() is hidden, but it's what the platform uses for its own persistent
+             * cache. The cache keeps a bounded number of sessions per directory. */
+            SSLSessionCache cache = new SSLSessionCache(dir);
+            Method install = SSLSessionCache.class.getMethod("install", SSLSessionCache.class, SSLContext.class);
+            install.invoke(null, cache, sslContext);
+            sessionCacheDir = dir;
+        } catch(Exception e) {
+            // Not fatal, sessions are still resumed as long as the process lives
+            App.log.log(Level.WARNING, "Couldn't install persistent TLS session cache", e);
+        }
+    }
+
+    /**
+     * Deletes persisted sessions which have expired anyway.
+     */
+    private static void pruneSessionCache(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        long minTime = System.currentTimeMillis() - SESSION_TIMEOUT * 1000L;
+        for (File file : files)
+            if (file.lastModified() < minTime && !file.delete())
+                App.log.warning("Couldn't delete expired TLS session " + file);
+    }
+
+    /**
+     * Forgets all the sessions (in memory and on disk), so the next connections have to do a full handshake,
+     * including certificate verification. Has to be called whenever previously trusted certificates may
+     * not be trusted anymore.
+     */
+    public void clearSessionCache() {
+        if (sessionContext != null) {
+            // Setting the cache size to zero doesn't drop sessions on all platforms, so invalidate them explicitly
+            for (byte[] id : Collections.list(sessionContext.getIds())) {
+                SSLSession session = sessionContext.getSession(id);
+                if (session != null)
+                    session.invalidate();
+            }
+        }
+        if (sessionCacheDir != null)
+            clearSessionCache(sessionCacheDir);
+    }
+
+    public static void clearSessionCache(@NonNull File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (!file.delete())
+                    App.log.warning("Couldn't delete TLS session " + file);
+    }
+
     private void upgradeTLS(SSLSocket ssl) {
         if (protocols != null)
             ssl.setEnabledProtocols(protocols);
 
         if (cipherSuites != null)
             ssl.setEnabledCipherSuites(cipherSuites);
+
+        ssl.addHandshakeCompletedListener(new HandshakeTimer());
+    }
+
+    public static HandshakeStatistics getStatistics() {
+        return statistics;
+    }
+
+
+    /**
+     * Counts full and abbreviated (resumed) handshakes, and the time they took from socket creation
+     * until the handshake completed.
+     */
+    public static class HandshakeStatistics {
+        private final AtomicLong fullCount = new AtomicLong(),
+                fullTime = new AtomicLong(),
+                resumedCount = new AtomicLong(),
+                resumedTime = new AtomicLong();
+
+        void add(boolean resumed, long time) {
+            if (resumed) {
+                resumedCount.incrementAndGet();
+                resumedTime.addAndGet(time);
+            } else {
+                fullCount.incrementAndGet();
+                fullTime.addAndGet(time);
+            }
+        }
+
+        public long getFullCount() {
+            return fullCount.get();
+        }
+
+        public long getResumedCount() {
+            return resumedCount.get();
+        }
+
+        /**
+         * @return estimated time saved by resuming sessions (in ms), or 0 if it can't be estimated yet
+         */
+        public long getTimeSaved() {
+            long full = fullCount.get(), resumed = resumedCount.get();
+            if (full == 0 || resumed == 0)
+                return 0;
+            long saved = resumed * (fullTime.get() / full - resumedTime.get() / resumed);
+            return Math.max(saved, 0);
+        }
+
+        @Override
+        public String toString() {
+            long full = fullCount.get(), resumed = resumedCount.get();
+            return "Full handshakes: " + full + (full > 0 ? " (avg. " + fullTime.get() / full + " ms)" : "") + "\n" +
+                    "Resumed handshakes: " + resumed + (resumed > 0 ? " (avg. " + resumedTime.get() / resumed + " ms)" : "") + "\n" +
+                    "Estimated time saved: " + getTimeSaved() + " ms\n";
+        }
+    }
+
+    private static class HandshakeTimer implements HandshakeCompletedListener {
+        private final long created = SystemClock.elapsedRealtime(),
+                createdWallClock = System.currentTimeMillis();
+
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            // a resumed session was created before this socket
+            boolean resumed = event.getSession().getCreationTime() < createdWallClock;
+            statistics.add(resumed, SystemClock.elapsedRealtime() - created);
+        }
     }
 
 
@@ -2,12 +2,14 @@ package com.etesync.syncadapter.journalmanager;
 
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.GsonHelper;
+import com.google.gson.JsonParseException;
 
 import org.apache.commons.codec.Charsets;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.util.Random;
 import java.util.logging.Level;
 
 import okhttp3.HttpUrl;
@@ -18,29 +20,117 @@ import okhttp3.Response;
 
 abstract class BaseManager {
     final static protected MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    final static protected MediaType CBOR = MediaType.parse("application/cbor");
+
+    final static int HTTP_TOO_MANY_REQUESTS = 429;
+
+    final static int MAX_ATTEMPTS = 3;
+    /* Server requested delays longer than that (in seconds) are left to the sync framework */
+    final static long MAX_RETRY_AFTER = 30;
+    /* Not final so tests can shorten them */
+    static long retryDelay = 1000;
+    static long maxRetryDelay = 8000;
+
+    private final static Random random = new Random();
 
     protected HttpUrl remote;
     protected OkHttpClient client;
 
+    /**
+     * Executes the request, retrying GET requests on transient failures.
+     */
     Response newCall(Request request) throws Exceptions.HttpException {
-        Response response;
+        return newCall(request, "GET".equals(request.method()));
+    }
+
+    /**
+     * Executes the request, retrying it on connection failures and transient server errors if it's idempotent,
+     * i.e. if sending it again can't do any harm even when the first attempt did reach the server.
+     */
+    Response newCall(Request request, boolean idempotent) throws Exceptions.HttpException {
+        String host = request.url().host() + ":" + request.url().port();
+
+        for (int attempt = 1 ; ; attempt++) {
+            CircuitBreaker.check(host);
+            boolean retry = idempotent && (attempt < MAX_ATTEMPTS);
+
+            Response response;
+            try {
+                response = client.newCall(request).execute();
+            } catch (IOException e) {
+                CircuitBreaker.failure(host);
+                if (retry && !CircuitBreaker.isOpen(host)) {
+                    App.log.log(Level.WARNING, "Failed while connecting to server, retrying", e);
+                    backoff(attempt, 0);
+                    continue;
+                }
+                App.log.log(Level.SEVERE, "Failed while connecting to server", e);
+                throw new Exceptions.ServiceUnavailableException("[" + e.getClass().getName() + "] " + e.getLocalizedMessage());
+            }
+
+            int code = response.code();
+            if (isTransient(code)) {
+                // Being rate limited doesn't mean the server is down
+                if (code != HTTP_TOO_MANY_REQUESTS) {
+                    CircuitBreaker.failure(host);
+                }
+                long retryAfter = Exceptions.ServiceUnavailableException.parseRetryAfter(response);
+                if (retry && (retryAfter <= MAX_RETRY_AFTER) && !CircuitBreaker.isOpen(host)) {
+                    App.log.warning("Transient server error " + code + ", retrying");
+                    response.close();
+                    backoff(attempt, retryAfter);
+                    continue;
+                }
+            } else {
+                CircuitBreaker.success(host);
+            }
+
+            return checkResponse(response);
+        }
+    }
+
+    private static boolean isTransient(int code) {
+        switch (code) {
+            case HttpURLConnection.HTTP_BAD_GATEWAY:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+            case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+            case HTTP_TOO_MANY_REQUESTS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter, so collections failing together don't retry together.
+     *
+     * @param retryAfter delay requested by the server (in seconds), used if longer than our own
+     */
+    private static void backoff(int attempt, long retryAfter) throws Exceptions.ServiceUnavailableException {
+        long delay = Math.min(retryDelay << (attempt - 1), maxRetryDelay);
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        delay = Math.max(delay, retryAfter * 1000);
         try {
-            response = client.newCall(request).execute();
-        } catch (IOException e) {
-            App.log.log(Level.SEVERE, "Failed while connecting to server", e);
-            throw new Exceptions.ServiceUnavailableException("[" + e.getClass().getName() + "] " + e.getLocalizedMessage());
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exceptions.ServiceUnavailableException("Interrupted while waiting to retry");
         }
+    }
 
+    private static Response checkResponse(Response response) throws Exceptions.HttpException {
         if (!response.isSuccessful()) {
-            ApiError apiError = GsonHelper.gson.fromJson(response.body().charStream(), ApiError.class);
+            ApiError apiError = parseApiError(response);
 
             switch (response.code()) {
                 case HttpURLConnection.HTTP_UNAVAILABLE:
                     throw new Exceptions.ServiceUnavailableException(response, "Service unavailable");
+                case HTTP_TOO_MANY_REQUESTS:
+                    throw new Exceptions.ServiceUnavailableException(response, "Too many requests");
                 case HttpURLConnection.HTTP_UNAUTHORIZED:
                     throw new Exceptions.UnauthorizedException(response, "Unauthorized auth token");
                 case HttpURLConnection.HTTP_FORBIDDEN:
-                    if (apiError.code.equals("service_inactive")) {
+                    if ("service_inactive".equals(apiError.code)) {
                         throw new Exceptions.UserInactiveException(response, apiError.detail);
                     }
                 default:
@@ -53,6 +143,17 @@ abstract class BaseManager {
         return response;
     }
 
+    private static ApiError parseApiError(Response response) {
+        ApiError apiError = null;
+        try {
+            apiError = GsonHelper.gson.fromJson(response.body().charStream(), ApiError.class);
+        } catch (JsonParseException e) {
+            // Not all errors come from the API (proxies, web servers), so the body may not be JSON
+            App.log.log(Level.FINE, "Failed parsing error response", e);
+        }
+        return (apiError != null) ? apiError : new ApiError();
+    }
+
     static class ApiError {
         String detail;
         String code;
@@ -73,6 +174,10 @@ abstract class BaseManager {
             return this.content;
         }
 
+        public int getContentSize() {
+            return (content != null) ? content.length : 0;
+        }
+
         void setUid(final String uid) {
             this.uid = uid;
         }
@@ -81,12 +186,12 @@ abstract class BaseManager {
             return uid;
         }
 
-        public String getContent(Crypto.CryptoManager crypto) {
-            return new String(crypto.decrypt(content), Charsets.UTF_8);
+        public String getContent(Crypto.CryptoManager crypto) throws Exceptions.IntegrityException {
+            return new String(crypto.decryptPayload(content), Charsets.UTF_8);
         }
 
         void setContent(Crypto.CryptoManager crypto, String content) {
-            this.content = crypto.encrypt(content.getBytes(Charsets.UTF_8));
+            this.content = crypto.encryptPayload(content.getBytes(Charsets.UTF_8));
         }
 
         byte[] calculateHmac(Crypto.CryptoManager crypto, String uuid) {
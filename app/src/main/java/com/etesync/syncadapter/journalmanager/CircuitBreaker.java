@@ -0,0 +1,87 @@
+package com.etesync.syncadapter.journalmanager;
+
+import com.etesync.syncadapter.App;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-host circuit breaker, shared by all the managers (and thus all the collections being synced).
+ *
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the circuit opens and requests to the host fail
+ * immediately for {@link #openTime} ms. After that, requests are let through again and the first one decides:
+ * a success closes the circuit, a failure opens it again right away.
+ */
+class CircuitBreaker {
+    static final int FAILURE_THRESHOLD = 3;
+    /* Not final so tests can shorten it */
+    static long openTime = 60 * 1000;
+
+    private static final Map<String, State> states = new HashMap<>();
+
+    private static class State {
+        int failures;
+        long openUntil;
+    }
+
+    private CircuitBreaker() {
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * @throws Exceptions.ServiceUnavailableException if the circuit for the host is open
+     */
+    static void check(String host) throws Exceptions.ServiceUnavailableException {
+        long remaining;
+        synchronized (states) {
+            State state = states.get(host);
+            if (state == null) {
+                return;
+            }
+            remaining = state.openUntil - now();
+        }
+
+        if (remaining > 0) {
+            throw new Exceptions.ServiceUnavailableException("Server " + host + " is unreachable, not retrying for a while",
+                    TimeUnit.MILLISECONDS.toSeconds(remaining) + 1);
+        }
+    }
+
+    static boolean isOpen(String host) {
+        synchronized (states) {
+            State state = states.get(host);
+            return (state != null) && (state.openUntil > now());
+        }
+    }
+
+    static void success(String host) {
+        synchronized (states) {
+            states.remove(host);
+        }
+    }
+
+    static void failure(String host) {
+        synchronized (states) {
+            State state = states.get(host);
+            if (state == null) {
+                state = new State();
+                states.put(host, state);
+            }
+            state.failures++;
+            if (state.failures >= FAILURE_THRESHOLD) {
+                App.log.warning("Too many failures, opening circuit for " + host);
+                state.openUntil = now() + openTime;
+            }
+        }
+    }
+
+    static void reset() {
+        synchronized (states) {
+            states.clear();
+        }
+    }
+}
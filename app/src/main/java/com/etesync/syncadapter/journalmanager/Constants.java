@@ -1,5 +1,8 @@
 package com.etesync.syncadapter.journalmanager;
 
 public class Constants {
-    public final static int CURRENT_VERSION = 2;
+    public final static int CURRENT_VERSION = 3;
+    /* Version of the collections and user info we create, which older clients must still be able to read. Version 3
+     * (compressed payloads) is read, but not created until there's a way to tell all clients of an account can read it. */
+    public final static int CREATE_VERSION = 2;
 }
@@ -35,12 +35,15 @@ import org.spongycastle.crypto.util.PublicKeyFactory;
 import org.spongycastle.crypto.util.SubjectPublicKeyInfoFactory;
 import org.spongycastle.util.encoders.Hex;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class Crypto {
     public static String deriveKey(String salt, String password) {
@@ -147,6 +150,10 @@ public class Crypto {
 
     public static class CryptoManager {
         final static int HMAC_SIZE = 256 / 8; // hmac256 in bytes
+        // Starting from this version payloads are prefixed with a flag byte and optionally deflated before encryption
+        final static int COMPRESSION_VERSION = 3;
+        private final static byte PAYLOAD_RAW = 0;
+        private final static byte PAYLOAD_DEFLATE = 1;
 
         private SecureRandom _random = null;
         private final byte version;
@@ -244,6 +251,66 @@ public class Crypto {
             return buf;
         }
 
+        /**
+         * Like {@link #encrypt(byte[])}, but in the payload format of the version. Payloads are only read compressed,
+         * not written so: nothing creates version 3 collections yet (see {@link Constants#CREATE_VERSION}), and
+         * uncompressed ones are readable by any client of the version.
+         * The flag byte is part of the ciphertext and therefore covered by the entry's HMAC.
+         */
+        byte[] encryptPayload(byte[] data) {
+            if (version < COMPRESSION_VERSION) {
+                return encrypt(data);
+            }
+
+            return encrypt(ArrayUtils.add(data, 0, PAYLOAD_RAW));
+        }
+
+        byte[] decryptPayload(byte[] data) throws Exceptions.IntegrityException {
+            byte[] decrypted = decrypt(data);
+            if (decrypted == null) {
+                throw new Exceptions.IntegrityException("Couldn't decrypt payload");
+            } else if (version < COMPRESSION_VERSION) {
+                return decrypted;
+            }
+
+            if (decrypted.length == 0) {
+                throw new Exceptions.IntegrityException("Missing payload flag");
+            }
+
+            byte[] payload = Arrays.copyOfRange(decrypted, 1, decrypted.length);
+            switch (decrypted[0]) {
+                case PAYLOAD_RAW:
+                    return payload;
+                case PAYLOAD_DEFLATE:
+                    try {
+                        return inflate(payload);
+                    } catch (DataFormatException e) {
+                        throw new Exceptions.IntegrityException("Invalid compressed payload: " + e.getLocalizedMessage());
+                    }
+                default:
+                    throw new Exceptions.IntegrityException("Unknown payload flag: " + decrypted[0]);
+            }
+        }
+
+        private static byte[] inflate(byte[] data) throws DataFormatException {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data);
+                ByteArrayOutputStream os = new ByteArrayOutputStream(data.length * 4);
+                byte[] buf = new byte[4096];
+                while (!inflater.finished()) {
+                    int len = inflater.inflate(buf);
+                    if ((len == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("Truncated deflate stream");
+                    }
+                    os.write(buf, 0, len);
+                }
+                return os.toByteArray();
+            } finally {
+                inflater.end();
+            }
+        }
+
         byte[] hmac(byte[] data) {
             if (version == 1) {
                 return hmac256(hmacKey, data);
@@ -33,9 +33,26 @@ public class Exceptions {
             this.retryAfter = 0;
         }
 
+        public ServiceUnavailableException(String message, long retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
         public ServiceUnavailableException(Response response, String message) {
             super(response, message);
-            this.retryAfter = Long.valueOf(response.header("Retry-After", "0"));
+            this.retryAfter = parseRetryAfter(response);
+        }
+
+        /**
+         * @return the delay (in seconds) requested by the server, or 0 if none or in an unsupported format
+         */
+        static long parseRetryAfter(Response response) {
+            try {
+                return Math.max(Long.parseLong(response.header("Retry-After", "0").trim()), 0);
+            } catch (NumberFormatException e) {
+                // Could also be a HTTP date, treat it like no preference
+                return 0;
+            }
         }
     }
 
@@ -0,0 +1,122 @@
+package com.etesync.syncadapter.journalmanager;
+
+import com.etesync.syncadapter.App;
+import com.etesync.syncadapter.GsonHelper;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Fetches the new entries of several journals with one request. The entries are returned as is, callers
+ * have to verify them with the journal's crypto manager using {@link JournalEntryManager#verify}.
+ */
+public class JournalEntriesBatchManager extends BaseManager {
+    final static private Type journalEntriesType = new TypeToken<List<JournalEntries>>() {
+    }.getType();
+
+    /* Hosts which don't have the endpoint, so they aren't asked again (until the process is restarted) */
+    private static final Set<String> unsupportedHosts = new HashSet<>();
+
+    public JournalEntriesBatchManager(OkHttpClient httpClient, HttpUrl remote) {
+        this.remote = remote.newBuilder()
+                .addPathSegments("api/v1/journals/entries")
+                .addPathSegment("")
+                .build();
+        App.log.info("Created for: " + this.remote.toString());
+
+        this.client = httpClient;
+    }
+
+    /**
+     * @param lastUids map of journal uid to the uid of the last entry we have (null for none)
+     * @param limit maximum number of entries per journal
+     * @return map of journal uid to its entries, or null if the server doesn't support batching.
+     */
+    public Map<String, List<JournalEntryManager.Entry>> list(Map<String, String> lastUids, int limit) throws Exceptions.HttpException {
+        synchronized (unsupportedHosts) {
+            if (unsupportedHosts.contains(remote.host())) {
+                return null;
+            }
+        }
+
+        List<JournalLast> query = new ArrayList<>(lastUids.size());
+        for (Map.Entry<String, String> lastUid : lastUids.entrySet()) {
+            query.add(new JournalLast(lastUid.getKey(), lastUid.getValue()));
+        }
+
+        HttpUrl.Builder urlBuilder = this.remote.newBuilder();
+        if (limit > 0) {
+            urlBuilder.addQueryParameter("limit", String.valueOf(limit));
+        }
+
+        Request request = new Request.Builder()
+                .post(RequestBody.create(JSON, GsonHelper.gson.toJson(query)))
+                .url(urlBuilder.build())
+                .build();
+
+        Response response;
+        try {
+            response = newCall(request);
+        } catch (Exceptions.HttpException e) {
+            if ((e.status == HttpURLConnection.HTTP_NOT_FOUND) || (e.status == HttpURLConnection.HTTP_BAD_METHOD)) {
+                App.log.info("Server doesn't support batched entry fetching");
+                synchronized (unsupportedHosts) {
+                    unsupportedHosts.add(remote.host());
+                }
+                return null;
+            }
+            throw e;
+        }
+
+        ResponseBody body = response.body();
+        List<JournalEntries> journals = GsonHelper.gson.fromJson(body.charStream(), journalEntriesType);
+
+        Map<String, List<JournalEntryManager.Entry>> ret = new HashMap<>();
+        for (JournalEntries journal : journals) {
+            // Only hand out what was asked for, anything else could be confused with a full listing
+            if (lastUids.containsKey(journal.journal) && (journal.entries != null)) {
+                ret.put(journal.journal, journal.entries);
+            }
+        }
+        return ret;
+    }
+
+    static void resetUnsupportedHosts() {
+        synchronized (unsupportedHosts) {
+            unsupportedHosts.clear();
+        }
+    }
+
+    static class JournalLast {
+        String journal;
+        String last;
+
+        JournalLast(String journal, String last) {
+            this.journal = journal;
+            this.last = last;
+        }
+    }
+
+    static class JournalEntries {
+        String journal;
+        List<JournalEntryManager.Entry> entries;
+
+        @SuppressWarnings("unused")
+        private JournalEntries() {
+        }
+    }
+}
@@ -2,22 +2,62 @@ package com.etesync.syncadapter.journalmanager;
 
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.GsonHelper;
+import com.etesync.syncadapter.journalmanager.util.Cbor;
+import com.google.gson.JsonIOException;
 import com.google.gson.reflect.TypeToken;
 
+import org.apache.commons.codec.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
 
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
 
 public class JournalEntryManager extends BaseManager {
     final String uid;
     final static private Type entryType = new TypeToken<List<Entry>>() {
     }.getType();
+    final static private String ACCEPT = CBOR.toString() + ", " + JSON.type() + "/" + JSON.subtype() + ";q=0.9";
+
+    /* Set once the server answered with CBOR, so we know it's safe to send it CBOR too. */
+    private boolean binarySupported = false;
+
+    /* Whether hosts accept gzip'ed request bodies, null (no entry) when we don't know yet. */
+    final static private Map<String, GzipSupport> gzipSupport = new HashMap<>();
+
+    private enum GzipSupport {
+        /* Said so in a response, but no compressed request was accepted yet */
+        ADVERTISED,
+        CONFIRMED,
+        UNSUPPORTED
+    }
+    private boolean compressRequests = false;
+
+    private File spillDirectory = null;
+    private long spillThreshold = 512 * 1024;
 
     public String getUid() {
         return uid;
@@ -37,11 +77,9 @@ public class JournalEntryManager extends BaseManager {
     }
 
     public List<Entry> list(Crypto.CryptoManager crypto, String last, int limit) throws Exceptions.HttpException, Exceptions.IntegrityException {
-        Entry previousEntry = null;
         HttpUrl.Builder urlBuilder = this.remote.newBuilder();
         if (last != null) {
             urlBuilder.addQueryParameter("last", last);
-            previousEntry = Entry.getFakeWithUid(last);
         }
 
         if (limit > 0) {
@@ -52,22 +90,49 @@ public class JournalEntryManager extends BaseManager {
 
         Request request = new Request.Builder()
                 .get()
+                .header("Accept", ACCEPT)
                 .url(remote)
                 .build();
 
         Response response = newCall(request);
+        updateGzipSupport(response);
         ResponseBody body = response.body();
-        List<Entry> ret = GsonHelper.gson.fromJson(body.charStream(), entryType);
+        List<Entry> ret;
+        if (isCbor(body.contentType())) {
+            binarySupported = true;
+            try {
+                ret = fromCbor(body);
+            } catch (IOException e) {
+                throw new Exceptions.ServiceUnavailableException("Failed reading CBOR response: " + e.getLocalizedMessage());
+            }
+        } else {
+            ret = GsonHelper.gson.fromJson(body.charStream(), entryType);
+        }
+
+        verify(crypto, last, ret);
+
+        return ret;
+    }
 
-        for (Entry entry : ret) {
+    /**
+     * Verifies the HMAC chain of entries that follow the entry with the uid last (null for the first entry).
+     */
+    public static void verify(Crypto.CryptoManager crypto, String last, List<Entry> entries) throws Exceptions.IntegrityException {
+        Entry previousEntry = (last != null) ? Entry.getFakeWithUid(last) : null;
+        for (Entry entry : entries) {
             entry.verify(crypto, previousEntry);
             previousEntry = entry;
         }
-
-        return ret;
     }
 
+    /**
+     * Pushes the entries. As the server only accepts them on top of last, a push that did reach the server
+     * can't be applied twice, so it's retried on transient failures (the retry fails with a conflict instead).
+     */
     public void create(List<Entry> entries, String last) throws Exceptions.HttpException {
+        // Without last there's nothing to make the request conditional
+        boolean idempotent = (last != null);
+
         HttpUrl.Builder urlBuilder = this.remote.newBuilder();
         if (last != null) {
             urlBuilder.addQueryParameter("last", last);
@@ -75,14 +140,263 @@ public class JournalEntryManager extends BaseManager {
 
         HttpUrl remote = urlBuilder.build();
 
-        RequestBody body = RequestBody.create(JSON, GsonHelper.gson.toJson(entries, entryType));
+        File spilled = null, spilledGzip = null;
+        try {
+            RequestBody body = null;
+            if ((spillDirectory != null) && (getContentSize(entries) > spillThreshold)) {
+                try {
+                    spilled = spill(entries);
+                    body = RequestBody.create(binarySupported ? CBOR : JSON, spilled);
+                } catch (IOException e) {
+                    App.log.log(Level.WARNING, "Couldn't write request body to " + spillDirectory + ", keeping it in memory", e);
+                }
+            }
+            if (body == null) {
+                if (binarySupported) {
+                    body = RequestBody.create(CBOR, toCbor(entries));
+                } else {
+                    body = RequestBody.create(JSON, GsonHelper.gson.toJson(entries, entryType));
+                }
+            }
 
-        Request request = new Request.Builder()
-                .post(body)
-                .url(remote)
-                .build();
+            if (shouldCompress()) {
+                RequestBody gzipped = null;
+                if (spilled != null) {
+                    try {
+                        spilledGzip = gzip(body, spillDirectory);
+                        gzipped = RequestBody.create(body.contentType(), spilledGzip);
+                    } catch (IOException e) {
+                        App.log.log(Level.WARNING, "Couldn't write compressed request body to " + spillDirectory, e);
+                    }
+                }
+                if (gzipped == null) {
+                    gzipped = gzip(body);
+                }
+
+                Request request = new Request.Builder()
+                        .post(gzipped)
+                        .header("Content-Encoding", "gzip")
+                        .url(remote)
+                        .build();
+
+                boolean confirmed = (getGzipSupport() == GzipSupport.CONFIRMED);
+                try {
+                    newCall(request, idempotent);
+                    setGzipSupport(GzipSupport.CONFIRMED);
+                    return;
+                } catch (Exceptions.HttpException e) {
+                    // Servers that can't decode the body don't necessarily answer with 415, but with the errors
+                    // of failing to parse or size it. Anything else (e.g. a conflict) isn't about the encoding.
+                    boolean rejected = (e.status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) ||
+                            (!confirmed && ((e.status == HttpURLConnection.HTTP_BAD_REQUEST) ||
+                                    (e.status == HttpURLConnection.HTTP_LENGTH_REQUIRED) ||
+                                    (e.status == HttpURLConnection.HTTP_ENTITY_TOO_LARGE)));
+                    if (!rejected) {
+                        throw e;
+                    }
+                    // The body was rejected without being processed, so it's safe to send it again
+                    App.log.info("Server didn't accept gzip'ed request (" + e.status + "), falling back to uncompressed");
+                    setGzipSupport(GzipSupport.UNSUPPORTED);
+                }
+            }
+
+            Request request = new Request.Builder()
+                    .post(body)
+                    .url(remote)
+                    .build();
+
+            newCall(request, idempotent);
+        } finally {
+            delete(spilled);
+            delete(spilledGzip);
+        }
+    }
+
+    /**
+     * Lets request bodies with more than {@link #spillThreshold} bytes of entry content be written to (and sent
+     * from) temporary files in the given directory, instead of being held in memory in all their forms.
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Sets the entry content size above which request bodies are spilled (see {@link #setSpillDirectory(File)}).
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    private File spill(List<Entry> entries) throws IOException {
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new IOException("Couldn't create " + spillDirectory);
+        }
+        File file = File.createTempFile("entries", null, spillDirectory);
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                if (binarySupported) {
+                    writeCbor(entries, os);
+                } else {
+                    Writer writer = new OutputStreamWriter(os, Charsets.UTF_8);
+                    GsonHelper.gson.toJson(entries, entryType, writer);
+                    writer.flush();
+                }
+            } finally {
+                os.close();
+            }
+        } catch (IOException | JsonIOException e) {
+            delete(file);
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        if ((file != null) && !file.delete()) {
+            App.log.warning("Couldn't delete " + file);
+        }
+    }
+
+    /**
+     * @return the number of bytes of (encrypted) content of the entries
+     */
+    public static long getContentSize(List<Entry> entries) {
+        long size = 0;
+        for (Entry entry : entries) {
+            size += entry.getContentSize();
+        }
+        return size;
+    }
+
+    /**
+     * Opt-in to gzip'ed request bodies. Only used for hosts that advertised support for gzip (as per RFC 7694)
+     * and didn't reject it since, and only for JSON, as CBOR bodies are already mostly ciphertext.
+     */
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    private boolean shouldCompress() {
+        if (!compressRequests || binarySupported) {
+            return false;
+        }
+        GzipSupport support = getGzipSupport();
+        return (support == GzipSupport.ADVERTISED) || (support == GzipSupport.CONFIRMED);
+    }
+
+    private GzipSupport getGzipSupport() {
+        synchronized (gzipSupport) {
+            return gzipSupport.get(remote.host());
+        }
+    }
+
+    private void setGzipSupport(GzipSupport support) {
+        synchronized (gzipSupport) {
+            gzipSupport.put(remote.host(), support);
+        }
+    }
+
+    static void resetGzipSupport() {
+        synchronized (gzipSupport) {
+            gzipSupport.clear();
+        }
+    }
+
+    private void updateGzipSupport(Response response) {
+        // RFC 7694: servers may list the content codings they accept for requests in responses
+        String acceptEncoding = response.header("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return;
+        }
+        if (!acceptEncoding.toLowerCase().contains("gzip")) {
+            setGzipSupport(GzipSupport.UNSUPPORTED);
+        } else if (getGzipSupport() != GzipSupport.CONFIRMED) {
+            setGzipSupport(GzipSupport.ADVERTISED);
+        }
+    }
 
-        newCall(request);
+    private static RequestBody gzip(RequestBody body) {
+        Buffer buffer = new Buffer();
+        try {
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(buffer));
+            body.writeTo(gzipSink);
+            gzipSink.close();
+        } catch (IOException e) {
+            // Can never happen when writing to memory
+            throw new AssertionError(e);
+        }
+        return RequestBody.create(body.contentType(), buffer.readByteArray());
+    }
+
+    private static File gzip(RequestBody body, File directory) throws IOException {
+        File file = File.createTempFile("entries", ".gz", directory);
+        try {
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(Okio.sink(file)));
+            try {
+                body.writeTo(gzipSink);
+            } finally {
+                gzipSink.close();
+            }
+        } catch (IOException e) {
+            delete(file);
+            throw e;
+        }
+        return file;
+    }
+
+    public boolean isBinarySupported() {
+        return binarySupported;
+    }
+
+    private static boolean isCbor(MediaType contentType) {
+        return (contentType != null) && CBOR.type().equals(contentType.type()) && CBOR.subtype().equals(contentType.subtype());
+    }
+
+    /* The CBOR form mirrors the JSON one: an array of {"uid": text, "content": bytes} maps, only without the base64. */
+    static byte[] toCbor(List<Entry> entries) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            writeCbor(entries, os);
+        } catch (IOException e) {
+            // Can never happen when writing to memory
+            throw new AssertionError(e);
+        }
+        return os.toByteArray();
+    }
+
+    private static void writeCbor(List<Entry> entries, OutputStream os) throws IOException {
+        Cbor.Writer writer = new Cbor.Writer(os);
+        writer.writeArrayHeader(entries.size());
+        for (Entry entry : entries) {
+            writer.writeMapHeader(2)
+                    .writeText("uid").writeText(entry.getUid())
+                    .writeText("content").writeBytes(entry.getContent());
+        }
+        writer.flush();
+    }
+
+    static List<Entry> fromCbor(ResponseBody body) throws IOException {
+        Cbor.Reader reader = new Cbor.Reader(body.byteStream());
+        int count = reader.readArrayHeader();
+        // Not preallocated, the count isn't to be trusted before the entries were actually read
+        List<Entry> ret = new ArrayList<>();
+        for (int i = 0 ; i < count ; i++) {
+            Entry entry = new Entry();
+            int fields = reader.readMapHeader();
+            for (int j = 0 ; j < fields ; j++) {
+                String key = reader.readText();
+                if ("uid".equals(key)) {
+                    entry.setUid(reader.readText());
+                } else if ("content".equals(key)) {
+                    entry.setContent(reader.readBytes());
+                } else {
+                    reader.skip();
+                }
+            }
+            ret.add(entry);
+        }
+        return ret;
     }
 
     public static class Entry extends Base {
@@ -7,7 +7,10 @@ import com.google.gson.reflect.TypeToken;
 import org.spongycastle.util.Arrays;
 
 import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import okhttp3.HttpUrl;
@@ -26,7 +29,11 @@ public class JournalManager extends BaseManager {
     }.getType();
     final static private Type memberType = new TypeToken<List<Member>>() {
     }.getType();
+    final static private Type headType = new TypeToken<List<Head>>() {
+    }.getType();
+
 
+    private String lastETag = null;
 
     public JournalManager(OkHttpClient httpClient, HttpUrl remote) {
         this.remote = remote.newBuilder()
@@ -39,12 +46,32 @@ public class JournalManager extends BaseManager {
     }
 
     public List<Journal> list() throws Exceptions.HttpException {
-        Request request = new Request.Builder()
+        return list(null);
+    }
+
+    /**
+     * @param eTag the ETag of a previous listing (see {@link #getLastETag()}), or null to list unconditionally
+     * @return the journals, or null if they haven't changed since eTag
+     */
+    public List<Journal> list(String eTag) throws Exceptions.HttpException {
+        Request.Builder builder = new Request.Builder()
                 .get()
-                .url(remote)
-                .build();
+                .url(remote);
+        if (eTag != null) {
+            builder.header("If-None-Match", eTag);
+        }
+
+        Response response;
+        try {
+            response = newCall(builder.build());
+        } catch (Exceptions.HttpException e) {
+            if ((eTag != null) && (e.status == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+                return null;
+            }
+            throw e;
+        }
+        lastETag = response.header("ETag");
 
-        Response response = newCall(request);
         ResponseBody body = response.body();
         List<Journal> ret = GsonHelper.gson.fromJson(body.charStream(), journalType);
 
@@ -55,6 +82,47 @@ public class JournalManager extends BaseManager {
         return ret;
     }
 
+    /**
+     * @return the ETag of the last successful listing, or null if the server didn't send one
+     */
+    public String getLastETag() {
+        return lastETag;
+    }
+
+    /**
+     * Fetches the uid of the last entry of every journal with one request, so callers can tell which
+     * journals changed without listing the entries of each.
+     *
+     * @return map of journal uid to its last entry uid (null for empty journals), or null if the server
+     * doesn't support this.
+     */
+    public Map<String, String> listHeads() throws Exceptions.HttpException {
+        Request request = new Request.Builder()
+                .get()
+                .url(remote.resolve("heads/"))
+                .build();
+
+        Response response;
+        try {
+            response = newCall(request);
+        } catch (Exceptions.HttpException e) {
+            if (e.status == HttpURLConnection.HTTP_NOT_FOUND) {
+                App.log.fine("Server doesn't support journal heads");
+                return null;
+            }
+            throw e;
+        }
+
+        ResponseBody body = response.body();
+        List<Head> heads = GsonHelper.gson.fromJson(body.charStream(), headType);
+
+        Map<String, String> ret = new HashMap<>();
+        for (Head head : heads) {
+            ret.put(head.journal, head.last);
+        }
+        return ret;
+    }
+
     public void delete(Journal journal) throws Exceptions.HttpException {
         HttpUrl remote = this.remote.resolve(journal.getUid() + "/");
         Request request = new Request.Builder()
@@ -193,6 +261,14 @@ public class JournalManager extends BaseManager {
             return super.calculateHmac(crypto, getUid());
         }
 
+        /**
+         * @return a hash of everything the journal consists of (including its encrypted content), to tell
+         * whether it changed without having to decrypt it.
+         */
+        public String getContentHash() {
+            return sha256(toJson());
+        }
+
         public static String genUid() {
             return sha256(UUID.randomUUID().toString());
         }
@@ -207,6 +283,15 @@ public class JournalManager extends BaseManager {
         }
     }
 
+    static class Head {
+        String journal;
+        String last;
+
+        @SuppressWarnings("unused")
+        private Head() {
+        }
+    }
+
     public static class Member {
         private String user;
         private byte[] key;
@@ -0,0 +1,236 @@
+package com.etesync.syncadapter.journalmanager.util;
+
+import org.apache.commons.codec.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Minimal CBOR (RFC 7049) reader/writer covering the subset used for the entries wire format:
+ * unsigned integers, byte strings, text strings, arrays and maps of definite length, plus
+ * null. Anything else is rejected so that a misbehaving peer fails loudly.
+ */
+public class Cbor {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int SIMPLE_NULL = 22;
+
+    /* Strings are read in chunks of this size, so a bogus length fails at the end of the input rather than
+     * allocating it all upfront */
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    public static class Writer {
+        private final DataOutputStream out;
+
+        public Writer(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public Writer writeArrayHeader(int size) throws IOException {
+            writeHeader(MAJOR_ARRAY, size);
+            return this;
+        }
+
+        public Writer writeMapHeader(int size) throws IOException {
+            writeHeader(MAJOR_MAP, size);
+            return this;
+        }
+
+        public Writer writeText(String text) throws IOException {
+            if (text == null) {
+                return writeNull();
+            }
+            byte[] bytes = text.getBytes(Charsets.UTF_8);
+            writeHeader(MAJOR_TEXT, bytes.length);
+            out.write(bytes);
+            return this;
+        }
+
+        public Writer writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                return writeNull();
+            }
+            writeHeader(MAJOR_BYTES, bytes.length);
+            out.write(bytes);
+            return this;
+        }
+
+        public Writer writeNull() throws IOException {
+            out.writeByte((MAJOR_SIMPLE << 5) | SIMPLE_NULL);
+            return this;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void writeHeader(int major, long value) throws IOException {
+            int type = major << 5;
+            if (value < 24) {
+                out.writeByte(type | (int) value);
+            } else if (value <= 0xFF) {
+                out.writeByte(type | 24);
+                out.writeByte((int) value);
+            } else if (value <= 0xFFFF) {
+                out.writeByte(type | 25);
+                out.writeShort((int) value);
+            } else if (value <= 0xFFFFFFFFL) {
+                out.writeByte(type | 26);
+                out.writeInt((int) value);
+            } else {
+                out.writeByte(type | 27);
+                out.writeLong(value);
+            }
+        }
+    }
+
+    public static class Reader {
+        private final DataInputStream in;
+
+        public Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /**
+         * @return the number of items, which comes from the data and thus shouldn't be used to preallocate
+         */
+        public int readArrayHeader() throws IOException {
+            return checkLength(readHeader(MAJOR_ARRAY));
+        }
+
+        public int readMapHeader() throws IOException {
+            return checkLength(readHeader(MAJOR_MAP));
+        }
+
+        /**
+         * @return the text, or null if the item was a CBOR null
+         */
+        public String readText() throws IOException {
+            byte[] bytes = readString(MAJOR_TEXT);
+            return (bytes == null) ? null : new String(bytes, Charsets.UTF_8);
+        }
+
+        /**
+         * @return the bytes, or null if the item was a CBOR null
+         */
+        public byte[] readBytes() throws IOException {
+            return readString(MAJOR_BYTES);
+        }
+
+        /**
+         * Skips over the next item, including all nested items.
+         */
+        public void skip() throws IOException {
+            int initial = in.readUnsignedByte();
+            int major = initial >> 5;
+            long value = readValue(initial);
+            switch (major) {
+                case MAJOR_UNSIGNED:
+                case 1:
+                case MAJOR_SIMPLE:
+                    break;
+                case MAJOR_BYTES:
+                case MAJOR_TEXT:
+                    skipFully(checkLength(value));
+                    break;
+                case MAJOR_ARRAY:
+                    for (long i = 0 ; i < value ; i++) {
+                        skip();
+                    }
+                    break;
+                case MAJOR_MAP:
+                    for (long i = 0 ; i < value * 2 ; i++) {
+                        skip();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unsupported CBOR major type " + major);
+            }
+        }
+
+        private byte[] readString(int expectedMajor) throws IOException {
+            int initial = in.readUnsignedByte();
+            if (initial == ((MAJOR_SIMPLE << 5) | SIMPLE_NULL)) {
+                return null;
+            }
+            checkMajor(initial, expectedMajor);
+            int length = checkLength(readValue(initial));
+            if (length <= READ_CHUNK_SIZE) {
+                byte[] ret = new byte[length];
+                in.readFully(ret);
+                return ret;
+            }
+
+            // Only grows as far as there actually is data
+            ByteArrayOutputStream os = new ByteArrayOutputStream(READ_CHUNK_SIZE);
+            byte[] buf = new byte[READ_CHUNK_SIZE];
+            int remaining = length;
+            while (remaining > 0) {
+                int len = Math.min(remaining, buf.length);
+                in.readFully(buf, 0, len);
+                os.write(buf, 0, len);
+                remaining -= len;
+            }
+            return os.toByteArray();
+        }
+
+        private void skipFully(int length) throws IOException {
+            byte[] buf = new byte[Math.min(length, READ_CHUNK_SIZE)];
+            int remaining = length;
+            while (remaining > 0) {
+                int len = Math.min(remaining, buf.length);
+                in.readFully(buf, 0, len);
+                remaining -= len;
+            }
+        }
+
+        private long readHeader(int expectedMajor) throws IOException {
+            int initial = in.readUnsignedByte();
+            checkMajor(initial, expectedMajor);
+            return readValue(initial);
+        }
+
+        private long readValue(int initial) throws IOException {
+            int info = initial & 0x1F;
+            if (info < 24) {
+                return info;
+            }
+            switch (info) {
+                case 24:
+                    return in.readUnsignedByte();
+                case 25:
+                    return in.readUnsignedShort();
+                case 26:
+                    return in.readInt() & 0xFFFFFFFFL;
+                case 27:
+                    return in.readLong();
+                default:
+                    // Indefinite lengths and reserved values are not part of our subset
+                    throw new IOException("Unsupported CBOR additional info " + info);
+            }
+        }
+
+        private static void checkMajor(int initial, int expectedMajor) throws IOException {
+            int major = initial >> 5;
+            if (major != expectedMajor) {
+                throw new IOException("Unexpected CBOR major type " + major + " (expected " + expectedMajor + ")");
+            }
+        }
+
+        private static int checkLength(long length) throws IOException {
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("CBOR item too long: " + length);
+            }
+            return (int) length;
+        }
+    }
+}
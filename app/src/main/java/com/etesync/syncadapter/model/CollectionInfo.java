@@ -53,7 +53,7 @@ public class CollectionInfo implements Serializable {
     public boolean selected;
 
     public CollectionInfo() {
-        version = Constants.CURRENT_VERSION;
+        version = Constants.CREATE_VERSION;
     }
 
     public static CollectionInfo defaultForServiceType(Type service) {
@@ -0,0 +1,288 @@
+package com.etesync.syncadapter.model;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.etesync.syncadapter.App;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+/**
+ * Full-text index (SQLite FTS4) over the cached journal entries, for searching the history of a journal.
+ *
+ * The index lives in the EntryFts table, which requery doesn't know about, with the id of the entry as docid.
+ * Entries are only ever appended with increasing ids, so everything above the highest indexed docid is what's
+ * left to index. Indexing is done in batches on a background thread of the sync process, see
+ * {@link #scheduleUpdate(App)}.
+ */
+public class EntryIndex {
+    private static final String TABLE = "EntryFts";
+    private static final int BATCH_SIZE = 200;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static boolean purged = false;
+
+    private EntryIndex() {
+    }
+
+    public static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE + " USING fts4(summary, names, emails, phones, locations, descriptions);");
+    }
+
+    /**
+     * Indexes the entries which aren't yet, off the calling thread.
+     */
+    public static void scheduleUpdate(final App app) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    update(app.getWritableDatabase());
+                } catch (SQLiteException e) {
+                    // Not fatal, it's retried after the next sync
+                    App.log.log(Level.WARNING, "Failed updating entry index", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Indexes the entries which aren't yet.
+     */
+    private static synchronized void update(SQLiteDatabase db) {
+        if (!purged) {
+            // Entries may have gone away without their index rows (e.g. with a journal), once per process is enough
+            db.execSQL("DELETE FROM " + TABLE + " WHERE docid NOT IN (SELECT id FROM Entry);");
+            purged = true;
+        }
+
+        int count = 0, indexed;
+        do {
+            indexed = indexBatch(db);
+            count += indexed;
+        } while (indexed == BATCH_SIZE);
+
+        if (count > 0) {
+            App.log.info("Added " + count + " entries to the search index");
+        }
+    }
+
+    private static int indexBatch(SQLiteDatabase db) {
+        int count = 0;
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE + " (docid, summary, names, emails, phones, locations, descriptions) VALUES (?, ?, ?, ?, ?, ?, ?)");
+        Cursor cursor = null;
+        // Where to continue is read within the (write) transaction, as another process may be indexing as well
+        db.beginTransaction();
+        try {
+            long lastId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(docid), 0) FROM " + TABLE, null);
+            cursor = db.rawQuery("SELECT id, content FROM Entry WHERE id > ? ORDER BY id LIMIT " + BATCH_SIZE,
+                    new String[] { String.valueOf(lastId) });
+            while (cursor.moveToNext()) {
+                Document document;
+                try {
+                    document = new Document(SyncEntryCodec.decode(cursor.getBlob(1)));
+                } catch (IllegalArgumentException e) {
+                    // Still added (empty), so it isn't retried forever
+                    App.log.log(Level.WARNING, "Couldn't index entry " + cursor.getLong(0), e);
+                    document = new Document(new SyncEntry(null, SyncEntry.Actions.ADD));
+                }
+                insert.bindLong(1, cursor.getLong(0));
+                insert.bindString(2, document.summary.toString());
+                insert.bindString(3, document.names.toString());
+                insert.bindString(4, document.emails.toString());
+                insert.bindString(5, document.phones.toString());
+                insert.bindString(6, document.locations.toString());
+                insert.bindString(7, document.descriptions.toString());
+                insert.executeInsert();
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (cursor != null) {
+                cursor.close();
+            }
+            insert.close();
+        }
+        return count;
+    }
+
+    /**
+     * Removes the given entries from the index, meant to be called together with deleting them.
+     */
+    public static void remove(SQLiteDatabase db, List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Integer id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        db.execSQL("DELETE FROM " + TABLE + " WHERE docid IN (" + sb + ");");
+    }
+
+    /**
+     * @param query words as typed by the user, all of which have to match (as prefixes)
+     * @return the ids of the matching entries of the journal, most recent first
+     */
+    public static List<Integer> search(SQLiteDatabase db, long journalId, String query, int limit) {
+        List<Integer> ret = new LinkedList<>();
+        String match = toMatchExpression(query);
+        if (match == null) {
+            return ret;
+        }
+
+        Cursor cursor = db.rawQuery("SELECT Entry.id FROM " + TABLE + " JOIN Entry ON Entry.id = " + TABLE + ".docid " +
+                        "WHERE " + TABLE + " MATCH ? AND Entry.journal = ? ORDER BY Entry.id DESC LIMIT " + limit,
+                new String[] { match, String.valueOf(journalId) });
+        try {
+            while (cursor.moveToNext()) {
+                ret.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    /* Every word becomes a quoted prefix phrase, so nothing the user types is taken as query syntax */
+    static String toMatchExpression(String query) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (!hasToken(word)) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(word).append("*\"");
+        }
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+
+    private static boolean hasToken(String word) {
+        for (int i = 0 ; i < word.length() ; i++) {
+            if (Character.isLetterOrDigit(word.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The searchable text of an entry, taken from its vCard/iCalendar properties without fully parsing them.
+     */
+    static class Document {
+        final StringBuilder summary = new StringBuilder();
+        final StringBuilder names = new StringBuilder();
+        final StringBuilder emails = new StringBuilder();
+        final StringBuilder phones = new StringBuilder();
+        final StringBuilder locations = new StringBuilder();
+        final StringBuilder descriptions = new StringBuilder();
+
+        Document(SyncEntry syncEntry) {
+            if (syncEntry.getContent() == null) {
+                return;
+            }
+
+            String[] lines = syncEntry.getContent().split("\r?\n");
+            StringBuilder line = new StringBuilder();
+            for (String next : lines) {
+                if (next.startsWith(" ") || next.startsWith("\t")) {
+                    // Folded line
+                    line.append(next, 1, next.length());
+                    continue;
+                }
+                addProperty(line.toString());
+                line.setLength(0);
+                line.append(next);
+            }
+            addProperty(line.toString());
+        }
+
+        private void addProperty(String line) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                return;
+            }
+            String name = line.substring(0, colon);
+            String params = "";
+            int semicolon = name.indexOf(';');
+            if (semicolon >= 0) {
+                params = name.substring(semicolon);
+                name = name.substring(0, semicolon);
+            }
+            // Grouped properties (e.g. "item1.EMAIL")
+            name = name.substring(name.lastIndexOf('.') + 1).toUpperCase();
+            String value = unescape(line.substring(colon + 1));
+
+            switch (name) {
+                case "FN":
+                case "SUMMARY":
+                    append(summary, value);
+                    break;
+                case "N":
+                case "NICKNAME":
+                case "ORG":
+                    append(names, value.replace(';', ' '));
+                    break;
+                case "EMAIL":
+                    append(emails, value);
+                    break;
+                case "ATTENDEE":
+                case "ORGANIZER":
+                    append(emails, value.replaceFirst("(?i)^mailto:", ""));
+                    append(names, getParameter(params, "CN"));
+                    break;
+                case "TEL":
+                    append(phones, value);
+                    // So numbers are found no matter how they were formatted
+                    append(phones, value.replaceAll("[^0-9]", ""));
+                    break;
+                case "LOCATION":
+                case "ADR":
+                    append(locations, value.replace(';', ' '));
+                    break;
+                case "DESCRIPTION":
+                case "NOTE":
+                    append(descriptions, value);
+                    break;
+            }
+        }
+
+        private static String getParameter(String params, String name) {
+            for (String param : params.split(";")) {
+                int equals = param.indexOf('=');
+                if ((equals > 0) && param.substring(0, equals).equalsIgnoreCase(name)) {
+                    return param.substring(equals + 1).replace("\"", "");
+                }
+            }
+            return null;
+        }
+
+        private static String unescape(String value) {
+            return value.replace("\\n", " ").replace("\\N", " ").replace("\\,", ",").replace("\\;", ";").replace("\\\\", "\\");
+        }
+
+        private static void append(StringBuilder sb, String value) {
+            if ((value == null) || value.trim().isEmpty()) {
+                return;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(value.trim());
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.etesync.syncadapter.model;
 
+import org.apache.commons.codec.Charsets;
+
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import io.requery.Column;
 import io.requery.Convert;
@@ -97,6 +100,11 @@ public class JournalModel {
         }
 
         public String getLastUid(EntityDataStore<Persistable> data) {
+            JournalMetaEntity meta = JournalMeta.fetch(data, this);
+            if (meta != null) {
+                return meta.getLastUid();
+            }
+
             EntryEntity last = data.select(EntryEntity.class).where(EntryEntity.JOURNAL.eq(this)).orderBy(EntryEntity.ID.desc()).limit(1).get().firstOrNull();
             if (last != null) {
                 return last.getUid();
@@ -124,10 +132,180 @@ public class JournalModel {
         @Convert(SyncEntryConverter.class)
         SyncEntry content;
 
-        @Index("entry_unique_together")
+        @Index({"entry_unique_together", "entry_resource_uid"})
         @ForeignKey(update = ReferentialAction.CASCADE)
         @ManyToOne
         Journal journal;
+
+        /* Extracted from the content, so it doesn't have to be decoded for lists and lookups. Null for entries
+         * which haven't been indexed yet (see indexPending) */
+        @Index("entry_resource_uid")
+        String resourceUid;
+
+        SyncEntry.Actions action;
+
+        String summary;
+
+        /**
+         * Sets the content together with the columns extracted from it.
+         */
+        public static void setContent(EntryEntity entry, SyncEntry syncEntry) {
+            entry.setContent(syncEntry);
+            entry.setResourceUid(syncEntry.getResourceUid());
+            entry.setAction(syncEntry.getAction());
+            entry.setSummary(syncEntry.getSummary());
+        }
+
+        /**
+         * Fills the extracted columns of up to limit entries of the journal which don't have them yet.
+         *
+         * @return the number of entries indexed, if it's limit there may be more left
+         */
+        public static int indexPending(final EntityDataStore<Persistable> data, Journal journal, int limit) {
+            final List<EntryEntity> entries = data.select(EntryEntity.class)
+                    .where(EntryEntity.JOURNAL.eq(journal).and(EntryEntity.ACTION.isNull()))
+                    .limit(limit).get().toList();
+            if (entries.isEmpty()) {
+                return 0;
+            }
+
+            for (EntryEntity entry : entries) {
+                setContent(entry, entry.getContent());
+            }
+            data.runInTransaction(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    data.update(entries);
+                    return null;
+                }
+            });
+            return entries.size();
+        }
+
+        /**
+         * @return the entries about the resource with the given UID, most recent first
+         */
+        public static List<EntryEntity> getHistory(EntityDataStore<Persistable> data, Journal journal, String resourceUid) {
+            return data.select(EntryEntity.class)
+                    .where(EntryEntity.JOURNAL.eq(journal).and(EntryEntity.RESOURCE_UID.eq(resourceUid)))
+                    .orderBy(EntryEntity.ID.desc()).get().toList();
+        }
+    }
+
+
+    /**
+     * Statistics about the entries of a journal, maintained as entries are persisted so they don't have to
+     * be computed by scanning the entries.
+     */
+    @Entity
+    @Table(name = "JournalMeta", uniqueIndexes = "journal_meta_unique_together")
+    public static abstract class JournalMeta {
+        @Key
+        @Generated
+        int id;
+
+        @Index("journal_meta_unique_together")
+        @ForeignKey(update = ReferentialAction.CASCADE)
+        @ManyToOne
+        Journal journal;
+
+        int entryCount;
+
+        String lastUid;
+
+        /* Time of the first and last successful sync (ms since epoch), 0 for never */
+        long firstSync;
+        long lastSync;
+
+        /* Uncompressed UTF-8 size of the stored entries (in their JSON form) */
+        long bytesStored;
+
+        int addCount;
+        int changeCount;
+        int deleteCount;
+
+        /* Retention policy: number of recent entries and/or their size to keep (0 for no limit, the default) */
+        int retainEntries;
+        long retainBytes;
+
+        /* Last comparison of the local collection with the cached journal (see SyncManager), and what it found */
+        long lastDriftCheck;
+        int driftMissing;
+        int driftExtra;
+
+        /* The lastUid at which the latest state of the journal was found to have no resources (see SyncManager),
+           so it doesn't have to be computed again until new entries arrive. null if not known to be empty */
+        String emptyStateUid;
+
+        public static JournalMetaEntity fetch(EntityDataStore<Persistable> data, Journal journal) {
+            return data.select(JournalMetaEntity.class).where(JournalMetaEntity.JOURNAL.eq(journal)).limit(1).get().firstOrNull();
+        }
+
+        /**
+         * Fetches the metadata of the journal, computing it from the stored entries if there is none yet.
+         */
+        public static JournalMetaEntity fetchOrCreate(EntityDataStore<Persistable> data, JournalEntity journal) {
+            JournalMetaEntity meta = fetch(data, journal);
+            if (meta == null) {
+                meta = new JournalMetaEntity();
+                meta.setJournal(journal);
+                meta.setLastUid(journal.getLastUid(data));
+                for (EntryEntity entry : data.select(EntryEntity.class).where(EntryEntity.JOURNAL.eq(journal)).get()) {
+                    addEntry(meta, entry.getContent());
+                }
+                data.insert(meta);
+            }
+            return meta;
+        }
+
+        /**
+         * Accounts for a newly stored entry. The caller is responsible for persisting meta.
+         */
+        public static void addEntry(JournalMetaEntity meta, String uid, SyncEntry entry) {
+            addEntry(meta, entry);
+            meta.setLastUid(uid);
+        }
+
+        private static void addEntry(JournalMetaEntity meta, SyncEntry entry) {
+            updateCounts(meta, entry.getAction(), getSize(entry), 1);
+        }
+
+        /**
+         * Accounts for an entry (of the given action and {@link #getSize(SyncEntry)}) which has been removed from
+         * the cache. The caller is responsible for persisting meta.
+         */
+        public static void removeEntry(JournalMetaEntity meta, SyncEntry.Actions action, long size) {
+            updateCounts(meta, action, size, -1);
+        }
+
+        private static void updateCounts(JournalMetaEntity meta, SyncEntry.Actions action, long size, int delta) {
+            meta.setEntryCount(meta.getEntryCount() + delta);
+            meta.setBytesStored(meta.getBytesStored() + delta * size);
+            switch (action) {
+                case ADD:
+                    meta.setAddCount(meta.getAddCount() + delta);
+                    break;
+                case CHANGE:
+                    meta.setChangeCount(meta.getChangeCount() + delta);
+                    break;
+                case DELETE:
+                    meta.setDeleteCount(meta.getDeleteCount() + delta);
+                    break;
+            }
+        }
+
+        public static long getSize(SyncEntry entry) {
+            return entry.toJson().getBytes(Charsets.UTF_8).length;
+        }
+
+        @Override
+        public String toString() {
+            return "JournalMeta(entryCount=" + entryCount + ", lastUid=" + lastUid + ", firstSync=" + firstSync +
+                    ", lastSync=" + lastSync + ", bytesStored=" + bytesStored + ", addCount=" + addCount +
+                    ", changeCount=" + changeCount + ", deleteCount=" + deleteCount + ", retainEntries=" + retainEntries +
+                    ", retainBytes=" + retainBytes + ", lastDriftCheck=" + lastDriftCheck + ", driftMissing=" + driftMissing +
+                    ", driftExtra=" + driftExtra + ", emptyStateUid=" + emptyStateUid + ")";
+        }
     }
 
 
@@ -178,15 +356,15 @@ public class JournalModel {
     }
 
 
-    static class SyncEntryConverter implements Converter<SyncEntry, String> {
+    static class SyncEntryConverter implements Converter<SyncEntry, byte[]> {
         @Override
         public Class<SyncEntry> getMappedType() {
             return SyncEntry.class;
         }
 
         @Override
-        public Class<String> getPersistedType() {
-            return String.class;
+        public Class<byte[]> getPersistedType() {
+            return byte[].class;
         }
 
         @Override
@@ -195,13 +373,13 @@ public class JournalModel {
         }
 
         @Override
-        public String convertToPersisted(SyncEntry value) {
-            return value == null ? null : value.toJson();
+        public byte[] convertToPersisted(SyncEntry value) {
+            return value == null ? null : SyncEntryCodec.encode(value);
         }
 
         @Override
-        public SyncEntry convertToMapped(Class<? extends SyncEntry> type, String value) {
-            return value == null ? null : SyncEntry.fromJson(value);
+        public SyncEntry convertToMapped(Class<? extends SyncEntry> type, byte[] value) {
+            return value == null ? null : SyncEntryCodec.decode(value);
         }
     }
 }
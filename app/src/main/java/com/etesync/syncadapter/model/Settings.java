@@ -9,77 +9,168 @@
 package com.etesync.syncadapter.model;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide app settings. The settings table is read once and served from memory, changes are written
+ * through to the database and announced to the registered {@link OnChangeListener}s.
+ *
+ * Other processes don't see changes until {@link #reload()} is called (see App.ReinitSettingsReceiver).
+ */
 public class Settings {
     public enum ChangeNotification {
         ALL_CHANGES,
         NONE
     }
 
-    final SQLiteDatabase db;
+    public interface OnChangeListener {
+        void onSettingChanged(@NonNull String name);
+    }
+
+    private static Settings instance;
+
+    private final ServiceDB.OpenHelper dbHelper;
+    private final Map<String, String> values = new HashMap<>();
+    private final CopyOnWriteArrayList<OnChangeListener> listeners = new CopyOnWriteArrayList<>();
 
-    public Settings(SQLiteDatabase db) {
-        this.db = db;
+    private Settings(ServiceDB.OpenHelper dbHelper) {
+        this.dbHelper = dbHelper;
+        values.putAll(load());
     }
 
+    public static synchronized Settings getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new Settings(new ServiceDB.OpenHelper(context.getApplicationContext()));
+        }
+        return instance;
+    }
 
-    public boolean getBoolean(String name, boolean defaultValue) {
-        Cursor cursor = db.query(ServiceDB.Settings._TABLE, new String[] { ServiceDB.Settings.VALUE },
-                ServiceDB.Settings.NAME + "=?", new String[] { name }, null, null, null);
+    private Map<String, String> load() {
+        Map<String, String> ret = new HashMap<>();
+        Cursor cursor = dbHelper.getReadableDatabase().query(ServiceDB.Settings._TABLE,
+                new String[] { ServiceDB.Settings.NAME, ServiceDB.Settings.VALUE }, null, null, null, null, null);
         try {
-            if (cursor.moveToNext() && !cursor.isNull(0))
-                return cursor.getInt(0) != 0;
-            else
-                return defaultValue;
+            while (cursor.moveToNext())
+                ret.put(cursor.getString(0), cursor.getString(1));
         } finally {
             cursor.close();
         }
+        return ret;
+    }
+
+    /**
+     * Reads the settings from the database again (to pick up changes made by another process), and notifies
+     * the listeners of every setting that changed.
+     */
+    public void reload() {
+        Map<String, String> loaded = load();
+        Set<String> changed = new HashSet<>();
+        synchronized (values) {
+            for (Map.Entry<String, String> entry : loaded.entrySet())
+                if (!values.containsKey(entry.getKey()) || !TextUtils.equals(values.get(entry.getKey()), entry.getValue()))
+                    changed.add(entry.getKey());
+            for (String name : values.keySet())
+                if (!loaded.containsKey(name))
+                    changed.add(name);
+
+            values.clear();
+            values.putAll(loaded);
+        }
+
+        for (String name : changed)
+            notifyChanged(name);
+    }
+
+    public void addOnChangeListener(@NonNull OnChangeListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeOnChangeListener(@NonNull OnChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyChanged(String name) {
+        for (OnChangeListener listener : listeners)
+            listener.onSettingChanged(name);
+    }
+
+    private boolean contains(String name) {
+        synchronized (values) {
+            return values.containsKey(name);
+        }
+    }
+
+    private String get(String name) {
+        synchronized (values) {
+            return values.get(name);
+        }
+    }
+
+    private void put(String name, @Nullable String value, ContentValues contentValues) {
+        contentValues.put(ServiceDB.Settings.NAME, name);
+        dbHelper.getWritableDatabase().insertWithOnConflict(ServiceDB.Settings._TABLE, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+
+        boolean changed;
+        synchronized (values) {
+            changed = !values.containsKey(name) || !TextUtils.equals(values.get(name), value);
+            values.put(name, value);
+        }
+        if (changed)
+            notifyChanged(name);
+    }
+
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value) != 0;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     public void putBoolean(String name, boolean value) {
         ContentValues values = new ContentValues(2);
-        values.put(ServiceDB.Settings.NAME, name);
         values.put(ServiceDB.Settings.VALUE, value ? 1 : 0);
-        db.insertWithOnConflict(ServiceDB.Settings._TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        put(name, value ? "1" : "0", values);
     }
 
 
     public int getInt(String name, int defaultValue) {
-        Cursor cursor = db.query(ServiceDB.Settings._TABLE, new String[] { ServiceDB.Settings.VALUE },
-                ServiceDB.Settings.NAME + "=?", new String[] { name }, null, null, null);
+        String value = get(name);
+        if (value == null)
+            return defaultValue;
         try {
-            if (cursor.moveToNext() && !cursor.isNull(0))
-                return cursor.isNull(0) ? defaultValue : cursor.getInt(0);
-            else
-                return defaultValue;
-        } finally {
-            cursor.close();
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
 
     public void putInt(String name, int value) {
         ContentValues values = new ContentValues(2);
-        values.put(ServiceDB.Settings.NAME, name);
         values.put(ServiceDB.Settings.VALUE, value);
-        db.insertWithOnConflict(ServiceDB.Settings._TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        put(name, String.valueOf(value), values);
     }
 
 
     @Nullable
     public String getString(String name, @Nullable String defaultValue) {
-        Cursor cursor = db.query(ServiceDB.Settings._TABLE, new String[] { ServiceDB.Settings.VALUE },
-                ServiceDB.Settings.NAME + "=?", new String[] { name }, null, null, null);
-        try {
-            if (cursor.moveToNext())
-                return cursor.getString(0);
-            else
-                return defaultValue;
-        } finally {
-            cursor.close();
-        }
+        // A stored null is returned as such, like it always has been
+        return contains(name) ? get(name) : defaultValue;
     }
 
     public ChangeNotification getChangeNotification(String name) {
@@ -89,14 +180,21 @@ public class Settings {
 
     public void putString(String name, @Nullable String value) {
         ContentValues values = new ContentValues(2);
-        values.put(ServiceDB.Settings.NAME, name);
         values.put(ServiceDB.Settings.VALUE, value);
-        db.insertWithOnConflict(ServiceDB.Settings._TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        put(name, value, values);
     }
 
 
     public void remove(String name) {
-        db.delete(ServiceDB.Settings._TABLE, ServiceDB.Settings.NAME + "=?", new String[] { name });
+        dbHelper.getWritableDatabase().delete(ServiceDB.Settings._TABLE, ServiceDB.Settings.NAME + "=?", new String[] { name });
+
+        boolean changed;
+        synchronized (values) {
+            changed = values.containsKey(name);
+            values.remove(name);
+        }
+        if (changed)
+            notifyChanged(name);
     }
 
 }
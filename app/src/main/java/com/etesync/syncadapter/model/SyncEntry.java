@@ -2,6 +2,7 @@ package com.etesync.syncadapter.model;
 
 import com.etesync.syncadapter.GsonHelper;
 import com.etesync.syncadapter.journalmanager.Crypto;
+import com.etesync.syncadapter.journalmanager.Exceptions;
 import com.etesync.syncadapter.journalmanager.JournalEntryManager;
 
 import java.io.Serializable;
@@ -48,7 +49,7 @@ public class SyncEntry implements Serializable {
         return this.action.equals(action);
     }
 
-    public static SyncEntry fromJournalEntry(Crypto.CryptoManager crypto, JournalEntryManager.Entry entry) {
+    public static SyncEntry fromJournalEntry(Crypto.CryptoManager crypto, JournalEntryManager.Entry entry) throws Exceptions.IntegrityException {
         return fromJson(entry.getContent(crypto));
     }
 
@@ -59,4 +60,43 @@ public class SyncEntry implements Serializable {
     public String toJson() {
         return GsonHelper.gson.toJson(this, this.getClass());
     }
+
+    /**
+     * @return the UID of the contact/event/task this entry is about, or null if not found
+     */
+    public String getResourceUid() {
+        return getProperty("UID:");
+    }
+
+    /**
+     * @return a short description of the resource (the name of contacts, the summary of events and tasks)
+     */
+    public String getSummary() {
+        if ((content != null) && content.startsWith("BEGIN:VCARD")) {
+            return getProperty("FN:");
+        }
+        return getProperty("SUMMARY:");
+    }
+
+    /* Cheap lookup of the (first line of the) first property with that prefix, without parsing the content */
+    private String getProperty(String prefix) {
+        if (content == null) {
+            return null;
+        }
+
+        int start = content.startsWith(prefix) ? 0 : content.indexOf("\n" + prefix);
+        if (start < 0) {
+            return null;
+        }
+        start = content.indexOf(prefix, start) + prefix.length();
+
+        int end = content.indexOf('\n', start);
+        if (end < 0) {
+            end = content.length();
+        }
+        if ((end > start) && (content.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return content.substring(start, end);
+    }
 }
@@ -0,0 +1,241 @@
+package com.etesync.syncadapter.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.etesync.syncadapter.App;
+
+import org.apache.commons.codec.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage format of {@link SyncEntry}s in the Entry table.
+ *
+ * Entries are stored as a format byte, an action byte and the zlib compressed content. The content is compressed
+ * with a preset dictionary of common vCard/iCalendar lines if it's of that kind. Entries which don't get smaller
+ * that way, as well as rows written before compression was introduced, hold the JSON form of the entry, which
+ * always starts with '{'. The rows from before are compressed in the background, see
+ * {@link #scheduleCompressAll(App)}.
+ *
+ * The dictionaries must never change, as they are needed to read existing rows. Use a new format byte instead.
+ */
+public class SyncEntryCodec {
+    private static final byte FORMAT_DEFLATE = 0x01;
+    private static final byte FORMAT_DEFLATE_VCARD = 0x02;
+    private static final byte FORMAT_DEFLATE_ICALENDAR = 0x03;
+    private static final byte FORMAT_JSON = '{';
+
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static boolean compressed = false;
+
+    /* Common lines, the most frequent ones last (as they are the cheapest to reference) */
+    private static final byte[] DICTIONARY_VCARD = ("X-ABLABEL:\r\nX-ABADR:\r\nNICKNAME:\r\nBDAY:\r\nURL:\r\n" +
+            "PHOTO;ENCODING=b;TYPE=JPEG:\r\nPHOTO;VALUE=uri:\r\nNOTE:\r\nTITLE:\r\nORG:\r\n" +
+            "ADR;TYPE=home:;;\r\nADR;TYPE=work:;;\r\nCATEGORIES:\r\nTEL;TYPE=work:\r\nTEL;TYPE=home:\r\n" +
+            "TEL;TYPE=cell:\r\nEMAIL;TYPE=work:\r\nEMAIL;TYPE=home:\r\nEMAIL:\r\nTEL:\r\nREV:\r\n" +
+            "PRODID:+//IDN bitfire.at//ez-vcard/\r\nEND:VCARD\r\nN:\r\nFN:\r\nUID:\r\nBEGIN:VCARD\r\nVERSION:3.0\r\n" +
+            "VERSION:4.0\r\n").getBytes(Charsets.UTF_8);
+    private static final byte[] DICTIONARY_ICALENDAR = ("RRULE:FREQ=WEEKLY;BYDAY=\r\nRRULE:FREQ=YEARLY\r\n" +
+            "RRULE:FREQ=DAILY\r\nEXDATE;TZID=\r\nRECURRENCE-ID;TZID=\r\nORGANIZER;CN=\r\n" +
+            "ATTENDEE;CN=;PARTSTAT=NEEDS-ACTION;ROLE=REQ-PARTICIPANT;RSVP=TRUE:mailto:\r\nATTENDEE;PARTSTAT=ACCEPTED:mailto:\r\n" +
+            "BEGIN:VALARM\r\nACTION:DISPLAY\r\nTRIGGER:-PT15M\r\nDESCRIPTION:\r\nEND:VALARM\r\n" +
+            "BEGIN:VTIMEZONE\r\nTZOFFSETFROM:\r\nTZOFFSETTO:\r\nTZNAME:\r\nBEGIN:STANDARD\r\nEND:STANDARD\r\n" +
+            "BEGIN:DAYLIGHT\r\nEND:DAYLIGHT\r\nEND:VTIMEZONE\r\nBEGIN:VTODO\r\nEND:VTODO\r\nSTATUS:CONFIRMED\r\n" +
+            "TRANSP:OPAQUE\r\nCLASS:PUBLIC\r\nLOCATION:\r\nSEQUENCE:0\r\nCREATED:\r\nLAST-MODIFIED:\r\n" +
+            "PRODID:+//IDN bitfire.at//ical4android\r\nVERSION:2.0\r\nBEGIN:VCALENDAR\r\nEND:VCALENDAR\r\n" +
+            "BEGIN:VEVENT\r\nEND:VEVENT\r\nDTSTAMP:\r\nUID:\r\nSUMMARY:\r\nDTSTART;TZID=\r\nDTEND;TZID=\r\n" +
+            "DTSTART;VALUE=DATE:\r\nDTEND;VALUE=DATE:\r\n").getBytes(Charsets.UTF_8);
+
+    private SyncEntryCodec() {
+    }
+
+    static byte[] encode(SyncEntry entry) {
+        byte[] json = entry.toJson().getBytes(Charsets.UTF_8);
+        if (entry.getContent() == null) {
+            return json;
+        }
+
+        byte[] compressed = compress(entry);
+        // Tiny entries don't compress well, no point in storing them in a form that's more expensive to read
+        return (compressed.length < json.length) ? compressed : json;
+    }
+
+    private static byte[] compress(SyncEntry entry) {
+        byte format = FORMAT_DEFLATE;
+        byte[] dictionary = null;
+        if (entry.getContent().startsWith("BEGIN:VCARD")) {
+            format = FORMAT_DEFLATE_VCARD;
+            dictionary = DICTIONARY_VCARD;
+        } else if (entry.getContent().startsWith("BEGIN:VCALENDAR")) {
+            format = FORMAT_DEFLATE_ICALENDAR;
+            dictionary = DICTIONARY_ICALENDAR;
+        }
+
+        byte[] content = entry.getContent().getBytes(Charsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(content);
+            deflater.finish();
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream(content.length / 2 + 16);
+            os.write(format);
+            os.write(encodeAction(entry.getAction()));
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                os.write(buffer, 0, len);
+            }
+            return os.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static SyncEntry decode(byte[] data) {
+        if ((data.length == 0) || (data[0] == FORMAT_JSON)) {
+            return SyncEntry.fromJson(new String(data, Charsets.UTF_8));
+        }
+
+        byte[] dictionary;
+        switch (data[0]) {
+            case FORMAT_DEFLATE:
+                dictionary = null;
+                break;
+            case FORMAT_DEFLATE_VCARD:
+                dictionary = DICTIONARY_VCARD;
+                break;
+            case FORMAT_DEFLATE_ICALENDAR:
+                dictionary = DICTIONARY_ICALENDAR;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown entry format " + data[0]);
+        }
+        SyncEntry.Actions action = decodeAction(data[1]);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 2, data.length - 2);
+            ByteArrayOutputStream os = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buffer);
+                if ((len == 0) && !inflater.finished()) {
+                    if (inflater.needsDictionary() && (dictionary != null)) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IllegalArgumentException("Truncated entry");
+                    }
+                }
+                os.write(buffer, 0, len);
+            }
+            return new SyncEntry(new String(os.toByteArray(), Charsets.UTF_8), action);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte encodeAction(SyncEntry.Actions action) {
+        switch (action) {
+            case ADD:
+                return 'A';
+            case CHANGE:
+                return 'C';
+            case DELETE:
+                return 'D';
+            default:
+                throw new IllegalArgumentException("Unknown action " + action);
+        }
+    }
+
+    private static SyncEntry.Actions decodeAction(byte action) {
+        switch (action) {
+            case 'A':
+                return SyncEntry.Actions.ADD;
+            case 'C':
+                return SyncEntry.Actions.CHANGE;
+            case 'D':
+                return SyncEntry.Actions.DELETE;
+            default:
+                throw new IllegalArgumentException("Unknown action " + action);
+        }
+    }
+
+    /**
+     * Rewrites the entries still stored as JSON in the compressed format, off the calling thread. Reading doesn't
+     * depend on it, so it's done in the background (once per process) rather than on upgrading the database.
+     */
+    public static void scheduleCompressAll(final App app) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (compressed) {
+                    return;
+                }
+                try {
+                    compressAll(app.getWritableDatabase());
+                    compressed = true;
+                } catch (SQLiteException e) {
+                    // Not fatal, it's retried after the next sync
+                    App.log.log(Level.WARNING, "Failed compressing journal entries", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites the entries still stored as JSON, a batch per transaction so other writers aren't held off.
+     */
+    private static void compressAll(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE Entry SET content=? WHERE id=?");
+        long lastId = -1;
+        int count = 0, batch;
+        try {
+            do {
+                batch = 0;
+                db.beginTransaction();
+                Cursor cursor = db.rawQuery("SELECT id, content FROM Entry WHERE id > ? AND content LIKE '{%' ORDER BY id LIMIT " + MIGRATION_BATCH_SIZE,
+                        new String[] { String.valueOf(lastId) });
+                try {
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        batch++;
+                        byte[] encoded = encode(SyncEntry.fromJson(cursor.getString(1)));
+                        if (encoded[0] == FORMAT_JSON) {
+                            // Doesn't get smaller
+                            continue;
+                        }
+                        update.bindBlob(1, encoded);
+                        update.bindLong(2, lastId);
+                        update.executeUpdateDelete();
+                        count++;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    cursor.close();
+                    db.endTransaction();
+                }
+            } while (batch == MIGRATION_BATCH_SIZE);
+        } finally {
+            update.close();
+        }
+        if (count > 0) {
+            App.log.info("Compressed " + count + " journal entries");
+        }
+    }
+}
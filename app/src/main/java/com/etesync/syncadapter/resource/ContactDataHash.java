@@ -0,0 +1,163 @@
+package com.etesync.syncadapter.resource;
+
+import android.content.ContentProviderClient;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+
+import at.bitfire.vcard4android.CachedGroupMembership;
+import at.bitfire.vcard4android.ContactsStorageException;
+
+/**
+ * Hash of the data rows of raw contacts, to tell real changes from the metadata-only ones which Android 7+
+ * sets the DIRTY flag for, too.
+ *
+ * It's computed straight from the rows of {@link RawContactsEntity}, so many contacts can be hashed with one
+ * cursor and without building {@link at.bitfire.vcard4android.Contact}s. The rows are combined independently of
+ * their order, which the provider doesn't guarantee. Hashes are stored as {@link #PREFIX} + hex in
+ * {@link LocalContact#COLUMN_HASHCODE}, anything else in there is a legacy {@link LocalContact#dataHashCode()}.
+ */
+class ContactDataHash {
+    static final String PREFIX = "v2:";
+
+    private static final String[] DATA_COLUMNS = {
+            RawContactsEntity.DATA1, RawContactsEntity.DATA2, RawContactsEntity.DATA3, RawContactsEntity.DATA4,
+            RawContactsEntity.DATA5, RawContactsEntity.DATA6, RawContactsEntity.DATA7, RawContactsEntity.DATA8,
+            RawContactsEntity.DATA9, RawContactsEntity.DATA10, RawContactsEntity.DATA11, RawContactsEntity.DATA12,
+            RawContactsEntity.DATA13, RawContactsEntity.DATA14, RawContactsEntity.DATA15
+    };
+    private static final int COLUMN_ID = 0, COLUMN_STORED_HASH = 1, COLUMN_DATA_ID = 2, COLUMN_MIMETYPE = 3, COLUMN_DATA = 4;
+    private static final String[] PROJECTION = new String[COLUMN_DATA + DATA_COLUMNS.length];
+    static {
+        PROJECTION[COLUMN_ID] = RawContactsEntity._ID;
+        PROJECTION[COLUMN_STORED_HASH] = LocalContact.COLUMN_HASHCODE;
+        PROJECTION[COLUMN_DATA_ID] = RawContactsEntity.DATA_ID;
+        PROJECTION[COLUMN_MIMETYPE] = RawContactsEntity.MIMETYPE;
+        System.arraycopy(DATA_COLUMNS, 0, PROJECTION, COLUMN_DATA, DATA_COLUMNS.length);
+    }
+    /* Index of Photo.PHOTO_FILE_ID (DATA14), which the provider may reassign without the photo changing */
+    private static final int COLUMN_PHOTO_FILE_ID = COLUMN_DATA + 13;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+
+    interface Callback {
+        /**
+         * @param storedHash what's stored in {@link LocalContact#COLUMN_HASHCODE} (may be null or legacy)
+         * @param hash current hash of the data rows
+         */
+        void onContact(long id, String storedHash, String hash) throws ContactsStorageException;
+    }
+
+    private ContactDataHash() {
+    }
+
+    /**
+     * Hashes the raw contacts matching the selection, in one pass.
+     *
+     * @param entityUri {@link RawContactsEntity#CONTENT_URI} for the address book (as sync adapter)
+     * @return number of raw contacts passed to the callback
+     */
+    static int query(ContentProviderClient provider, Uri entityUri, String where, String[] whereArgs, Callback callback) throws RemoteException, ContactsStorageException {
+        int count = 0;
+        Cursor cursor = provider.query(entityUri, PROJECTION, where, whereArgs, RawContactsEntity._ID);
+        if (cursor == null)
+            return 0;
+        try {
+            long id = -1, hash = 0;
+            String storedHash = null;
+            while (cursor.moveToNext()) {
+                long rowId = cursor.getLong(COLUMN_ID);
+                if (rowId != id) {
+                    if (count > 0)
+                        callback.onContact(id, storedHash, format(hash));
+                    id = rowId;
+                    hash = 0;
+                    storedHash = cursor.getString(COLUMN_STORED_HASH);
+                    count++;
+                }
+                hash += hashRow(cursor);
+            }
+            if (count > 0)
+                callback.onContact(id, storedHash, format(hash));
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * @return the hash of a single raw contact, or null if it doesn't exist (anymore)
+     */
+    static String get(ContentProviderClient provider, Uri entityUri, long id) throws RemoteException, ContactsStorageException {
+        final String[] ret = new String[1];
+        query(provider, entityUri, RawContacts._ID + "=?", new String[] { String.valueOf(id) }, new Callback() {
+            @Override
+            public void onContact(long id, String storedHash, String hash) {
+                ret[0] = hash;
+            }
+        });
+        return ret[0];
+    }
+
+    static boolean isLegacy(String storedHash) {
+        return (storedHash != null) && !storedHash.startsWith(PREFIX);
+    }
+
+    private static String format(long hash) {
+        return PREFIX + Long.toHexString(hash);
+    }
+
+    /* Hashes of the rows are summed up, so every row's own hash has to be well mixed */
+    private static long hashRow(Cursor cursor) {
+        // Raw contacts without any data come as a single row without data
+        if (cursor.isNull(COLUMN_DATA_ID))
+            return 0;
+
+        String mimeType = cursor.getString(COLUMN_MIMETYPE);
+        // Our own bookkeeping, changed by syncing rather than by the user
+        if (CachedGroupMembership.CONTENT_ITEM_TYPE.equals(mimeType))
+            return 0;
+
+        long hash = hashString(FNV_OFFSET, mimeType);
+        for (int i = COLUMN_DATA ; i < PROJECTION.length ; i++) {
+            if (i == COLUMN_PHOTO_FILE_ID && Photo.CONTENT_ITEM_TYPE.equals(mimeType))
+                continue;
+
+            // Column separator, so values can't shift into their neighbours
+            hash = (hash ^ 0xff) * FNV_PRIME;
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    for (byte b : cursor.getBlob(i))
+                        hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                    break;
+                default:
+                    hash = hashString((hash ^ 0xfe) * FNV_PRIME, cursor.getString(i));
+            }
+        }
+        return mix(hash);
+    }
+
+    private static long hashString(long hash, String s) {
+        for (int i = 0 ; i < s.length() ; i++) {
+            char c = s.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /* MurmurHash3 finalizer */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb53a42d4fa5dL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
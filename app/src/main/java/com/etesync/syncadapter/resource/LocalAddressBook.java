@@ -13,6 +13,7 @@ import android.accounts.AccountManagerCallback;
 import android.accounts.AccountManagerFuture;
 import android.accounts.AuthenticatorException;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -26,9 +27,12 @@ import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.Groups;
 import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.os.OperationCanceledException;
+import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
 
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.model.CollectionInfo;
@@ -37,16 +41,21 @@ import com.etesync.syncadapter.utils.AndroidCompat;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 
 import at.bitfire.vcard4android.AndroidAddressBook;
 import at.bitfire.vcard4android.AndroidContact;
 import at.bitfire.vcard4android.AndroidGroup;
+import at.bitfire.vcard4android.BatchOperation;
 import at.bitfire.vcard4android.CachedGroupMembership;
 import at.bitfire.vcard4android.ContactsStorageException;
 
@@ -68,6 +77,11 @@ public class LocalAddressBook extends AndroidAddressBook implements LocalCollect
      */
     public boolean includeGroups = true;
 
+    /* Raw contact IDs per "_ID IN (...)" selection */
+    private static final int CONTACT_ID_BATCH_SIZE = 200;
+
+    private static final int MEMBERSHIP_CURRENT = 1, MEMBERSHIP_CACHED = 2;
+
 
     public static LocalAddressBook[] find(@NonNull Context context, @NonNull ContentProviderClient provider, @Nullable Account mainAccount) throws ContactsStorageException {
         AccountManager accountManager = AccountManager.get(context);
@@ -176,36 +190,71 @@ public class LocalAddressBook extends AndroidAddressBook implements LocalCollect
      * if they're "really dirty" (= data has changed, not only metadata, which is not hashed).
      * The DIRTY flag is removed from contacts which are not "really dirty", i.e. from contacts
      * whose contact data checksum has not changed.
+     *
+     * All the dirty contacts are hashed in one pass over their data rows (see {@link ContactDataHash}) and
+     * the flags are removed in one batch, as on Android 7+ even just viewing contacts may flag thousands.
      * @return number of "really dirty" contacts
      */
     public int verifyDirty() throws ContactsStorageException {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
             App.log.severe("verifyDirty() should not be called on Android <7");
 
-        int reallyDirty = 0;
-        for (LocalContact contact : getDirtyContacts()) {
-            try {
-                int lastHash = contact.getLastHashCode(),
-                    currentHash = contact.dataHashCode();
-                if (lastHash == currentHash) {
-                    // hash is code still the same, contact is not "really dirty" (only metadata been have changed)
-                    App.log.log(Level.FINE, "Contact data hash has not changed, resetting dirty flag", contact);
-                    contact.resetDirty();
-                } else {
-                    App.log.log(Level.FINE, "Contact data has changed from hash " + lastHash + " to " + currentHash, contact);
-                    reallyDirty++;
-                }
-            } catch(FileNotFoundException e) {
-                throw new ContactsStorageException("Couldn't calculate hash code", e);
-            }
+        final List<Long> unchanged = new LinkedList<>();
+        final Map<Long, String> migrated = new HashMap<>();
+        int dirtyContacts;
+        try {
+            dirtyContacts = ContactDataHash.query(provider, syncAdapterURI(RawContactsEntity.CONTENT_URI),
+                    RawContacts.DIRTY + "!=0 AND " + RawContacts.DELETED + "==0", null,
+                    new ContactDataHash.Callback() {
+                        @Override
+                        public void onContact(long id, String storedHash, String hash) throws ContactsStorageException {
+                            if (hash.equals(storedHash)) {
+                                // hash is still the same, contact is not "really dirty" (only metadata has been changed)
+                                unchanged.add(id);
+                            } else if (ContactDataHash.isLegacy(storedHash) && storedHash.equals(String.valueOf(legacyHashCode(id)))) {
+                                // stored before ContactDataHash, unchanged too but has to be stored in the current form
+                                migrated.put(id, hash);
+                            } else
+                                App.log.log(Level.FINE, "Contact " + id + " data has changed from hash " + storedHash + " to " + hash);
+                        }
+                    });
+        } catch(RemoteException e) {
+            throw new ContactsStorageException("Couldn't calculate hash codes", e);
         }
 
+        if (!unchanged.isEmpty() || !migrated.isEmpty()) {
+            App.log.info("Resetting dirty flag of " + (unchanged.size() + migrated.size()) + " of " + dirtyContacts + " contacts with unchanged data");
+            BatchOperation batch = new BatchOperation(provider);
+            for (int start = 0; start < unchanged.size(); start += CONTACT_ID_BATCH_SIZE)
+                batch.enqueue(new BatchOperation.Operation(
+                        ContentProviderOperation.newUpdate(syncAdapterURI(RawContacts.CONTENT_URI))
+                                .withSelection(RawContacts._ID + " IN (" + TextUtils.join(",", unchanged.subList(start, Math.min(start + CONTACT_ID_BATCH_SIZE, unchanged.size()))) + ")", null)
+                                .withValue(RawContacts.DIRTY, 0)
+                ));
+            for (Map.Entry<Long, String> entry : migrated.entrySet())
+                batch.enqueue(new BatchOperation.Operation(
+                        ContentProviderOperation.newUpdate(syncAdapterURI(ContentUris.withAppendedId(RawContacts.CONTENT_URI, entry.getKey())))
+                                .withValue(RawContacts.DIRTY, 0)
+                                .withValue(LocalContact.COLUMN_HASHCODE, entry.getValue())
+                ));
+            batch.commit();
+        }
+
+        int reallyDirty = dirtyContacts - unchanged.size() - migrated.size();
         if (includeGroups)
             reallyDirty += getDirtyGroups().length;
 
         return reallyDirty;
     }
 
+    private int legacyHashCode(long id) throws ContactsStorageException {
+        try {
+            return new LocalContact(this, id, null, null).dataHashCode();
+        } catch(FileNotFoundException e) {
+            throw new ContactsStorageException("Couldn't calculate hash code", e);
+        }
+    }
+
     /**
      * Returns an array of local contacts/groups which have been changed locally (DIRTY != 0).
      */
@@ -257,6 +306,30 @@ public class LocalAddressBook extends AndroidAddressBook implements LocalCollect
         }
     }
 
+    @Override
+    @NonNull
+    public Set<String> getUids() throws ContactsStorageException {
+        Set<String> uids = new HashSet<>();
+        try {
+            addUids(uids, syncAdapterURI(RawContacts.CONTENT_URI), AndroidContact.COLUMN_FILENAME, RawContacts.DELETED + "==0");
+            if (includeGroups)
+                addUids(uids, syncAdapterURI(Groups.CONTENT_URI), AndroidGroup.COLUMN_FILENAME, Groups.DELETED + "==0");
+        } catch (RemoteException e) {
+            throw new ContactsStorageException("Couldn't query contact UIDs", e);
+        }
+        return uids;
+    }
+
+    private void addUids(Set<String> uids, Uri uri, String column, String where) throws RemoteException {
+        Cursor cursor = provider.query(uri, new String[] { column }, where + " AND " + column + " IS NOT NULL", null, null);
+        try {
+            while (cursor.moveToNext())
+                uids.add(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
     @NonNull
     public LocalContact[] getDeletedContacts() throws ContactsStorageException {
         return (LocalContact[])queryContacts(RawContacts.DELETED + "!= 0", null);
@@ -282,30 +355,138 @@ public class LocalAddressBook extends AndroidAddressBook implements LocalCollect
         return (LocalGroup[])queryGroups(Groups.DIRTY + "!= 0 AND " + Groups.DELETED + "== 0", null);
     }
 
-    @NonNull LocalContact[] getByGroupMembership(long groupID) throws ContactsStorageException {
+    /**
+     * Finds the groups whose members have changed locally, i.e. which are in the group memberships of a dirty
+     * contact but not in its cached group memberships or the other way round.
+     *
+     * The memberships of all dirty contacts are read with one cursor, so no contact has to be loaded.
+     * @return IDs of the groups with changed members, each only once
+     */
+    @NonNull
+    public long[] getGroupsWithChangedMembers() throws ContactsStorageException {
+        LongSparseArray<Boolean> changed = new LongSparseArray<>();
         try {
-            Cursor cursor = provider.query(syncAdapterURI(ContactsContract.Data.CONTENT_URI),
-                    new String[] { RawContacts.Data.RAW_CONTACT_ID },
-                    "(" + GroupMembership.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?) OR (" + CachedGroupMembership.MIMETYPE + "=? AND " + CachedGroupMembership.GROUP_ID + "=?)",
-                    new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupID), CachedGroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupID) },
-                    null);
+            // GroupMembership.GROUP_ROW_ID and CachedGroupMembership.GROUP_ID are the same column
+            Cursor cursor = provider.query(syncAdapterURI(RawContactsEntity.CONTENT_URI),
+                    new String[] { RawContactsEntity._ID, RawContactsEntity.MIMETYPE, GroupMembership.GROUP_ROW_ID },
+                    RawContacts.DIRTY + "!=0 AND " + RawContacts.DELETED + "==0 AND " + RawContactsEntity.MIMETYPE + " IN (?,?)",
+                    new String[] { GroupMembership.CONTENT_ITEM_TYPE, CachedGroupMembership.CONTENT_ITEM_TYPE },
+                    RawContactsEntity._ID);
+            if (cursor == null)
+                return new long[0];
+
+            // memberships of the current contact: group ID -> MEMBER and/or CACHED
+            LongSparseArray<Integer> memberships = new LongSparseArray<>();
+            long contactID = -1;
+            try {
+                while (cursor.moveToNext()) {
+                    if (cursor.isNull(2))
+                        continue;
+                    if (cursor.getLong(0) != contactID) {
+                        addChangedGroups(changed, memberships);
+                        contactID = cursor.getLong(0);
+                    }
+
+                    long groupID = cursor.getLong(2);
+                    int flag = GroupMembership.CONTENT_ITEM_TYPE.equals(cursor.getString(1)) ? MEMBERSHIP_CURRENT : MEMBERSHIP_CACHED;
+                    memberships.put(groupID, memberships.get(groupID, 0) | flag);
+                }
+                addChangedGroups(changed, memberships);
+            } finally {
+                cursor.close();
+            }
+        } catch (RemoteException e) {
+            throw new ContactsStorageException("Couldn't query group memberships", e);
+        }
 
-            Set<Long> ids = new HashSet<>();
-            while (cursor != null && cursor.moveToNext())
-                ids.add(cursor.getLong(0));
+        long[] ret = new long[changed.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = changed.keyAt(i);
+        return ret;
+    }
 
-            cursor.close();
+    private static void addChangedGroups(LongSparseArray<Boolean> changed, LongSparseArray<Integer> memberships) {
+        for (int i = 0; i < memberships.size(); i++)
+            if (memberships.valueAt(i) != (MEMBERSHIP_CURRENT | MEMBERSHIP_CACHED))
+                changed.put(memberships.keyAt(i), true);
+        memberships.clear();
+    }
 
-            LocalContact[] contacts = new LocalContact[ids.size()];
-            int i = 0;
-            for (Long id : ids)
-                contacts[i++] = new LocalContact(this, id, null, null);
-            return contacts;
+    /**
+     * @return raw contact IDs of all contacts which have a UID, by UID
+     */
+    @NonNull
+    Map<String, Long> getContactIDsByUID() throws ContactsStorageException {
+        Map<String, Long> ids = new HashMap<>();
+        try {
+            Cursor cursor = provider.query(syncAdapterURI(RawContacts.CONTENT_URI),
+                    new String[] { RawContacts._ID, LocalContact.COLUMN_UID },
+                    LocalContact.COLUMN_UID + " IS NOT NULL", null, null);
+            if (cursor == null)
+                return ids;
+            try {
+                while (cursor.moveToNext())
+                    ids.put(cursor.getString(1), cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
         } catch (RemoteException e) {
             throw new ContactsStorageException("Couldn't query contacts", e);
         }
+        return ids;
     }
 
+    /**
+     * Stores the current hash codes (see {@link ContactDataHash}) of the given contacts after their data has been
+     * changed by the sync adapter. Contacts which are dirty are left alone, so that their local changes aren't taken
+     * for metadata-only ones.
+     */
+    void updateHashCodes(Collection<Long> contactIDs) throws ContactsStorageException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+            App.log.severe("updateHashCodes() should not be called on Android <7");
+
+        List<Long> ids = new ArrayList<>(contactIDs);
+        for (int start = 0; start < ids.size(); start += CONTACT_ID_BATCH_SIZE) {
+            final BatchOperation batch = new BatchOperation(provider);
+            try {
+                ContactDataHash.query(provider, syncAdapterURI(RawContactsEntity.CONTENT_URI),
+                        RawContacts._ID + " IN (" + TextUtils.join(",", ids.subList(start, Math.min(start + CONTACT_ID_BATCH_SIZE, ids.size()))) + ") AND " +
+                                RawContacts.DIRTY + "==0",
+                        null,
+                        new ContactDataHash.Callback() {
+                            @Override
+                            public void onContact(long id, String storedHash, String hash) {
+                                if (!hash.equals(storedHash))
+                                    batch.enqueue(new BatchOperation.Operation(
+                                            ContentProviderOperation.newUpdate(syncAdapterURI(ContentUris.withAppendedId(RawContacts.CONTENT_URI, id)))
+                                                    .withValue(LocalContact.COLUMN_HASHCODE, hash)
+                                                    .withYieldAllowed(true)
+                                    ));
+                            }
+                        });
+            } catch (RemoteException e) {
+                throw new ContactsStorageException("Couldn't store contact checksums", e);
+            }
+            batch.commit();
+        }
+    }
+
+
+    /**
+     * Switches all raw contacts with suspended aggregation back to normal aggregation, so that the provider
+     * aggregates them in one go.
+     * @return number of raw contacts whose aggregation was resumed
+     */
+    public int resumeAggregation() throws ContactsStorageException {
+        ContentValues values = new ContentValues(1);
+        values.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT);
+        try {
+            return provider.update(syncAdapterURI(RawContacts.CONTENT_URI), values,
+                    RawContacts.AGGREGATION_MODE + "=?", new String[] { String.valueOf(RawContacts.AGGREGATION_MODE_SUSPENDED) });
+        } catch (RemoteException e) {
+            throw new ContactsStorageException("Couldn't resume aggregation", e);
+        }
+    }
 
     public void deleteAll() throws ContactsStorageException {
         try {
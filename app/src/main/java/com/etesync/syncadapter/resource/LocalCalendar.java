@@ -32,8 +32,10 @@ import net.fortuna.ical4j.model.component.VTimeZone;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.FileNotFoundException;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import at.bitfire.ical4android.AndroidCalendar;
 import at.bitfire.ical4android.AndroidCalendarFactory;
@@ -253,6 +255,29 @@ public class LocalCalendar extends AndroidCalendar implements LocalCollection {
         }
     }
 
+    @Override
+    public Set<String> getUids() throws CalendarStorageException {
+        String where = Events.CALENDAR_ID + "=? AND " + Events.DELETED + "==0 AND " + Events.ORIGINAL_ID + " IS NULL AND " + Events._SYNC_ID + " IS NOT NULL";
+        String whereArgs[] = {String.valueOf(id)};
+
+        Set<String> uids = new HashSet<>();
+        try {
+            Cursor cursor = provider.query(
+                    syncAdapterURI(Events.CONTENT_URI),
+                    new String[] { Events._SYNC_ID },
+                    where, whereArgs, null);
+            try {
+                while (cursor.moveToNext())
+                    uids.add(cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+        } catch (RemoteException e) {
+            throw new CalendarStorageException("Couldn't query calendar event UIDs", e);
+        }
+        return uids;
+    }
+
     public static class Factory implements AndroidCalendarFactory {
         public static final Factory INSTANCE = new Factory();
 
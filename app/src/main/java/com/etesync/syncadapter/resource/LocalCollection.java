@@ -9,6 +9,7 @@
 package com.etesync.syncadapter.resource;
 
 import java.io.FileNotFoundException;
+import java.util.Set;
 
 import at.bitfire.ical4android.CalendarStorageException;
 import at.bitfire.vcard4android.ContactsStorageException;
@@ -23,4 +24,7 @@ public interface LocalCollection {
     LocalResource getByUid(String uid) throws CalendarStorageException, ContactsStorageException;
 
     long count() throws CalendarStorageException, ContactsStorageException;
+
+    /** UIDs of all the non-deleted resources, read without loading the resources themselves */
+    Set<String> getUids() throws CalendarStorageException, ContactsStorageException;
 }
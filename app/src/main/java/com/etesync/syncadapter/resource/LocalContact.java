@@ -10,7 +10,6 @@ package com.etesync.syncadapter.resource;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.RemoteException;
@@ -52,6 +51,7 @@ public class LocalContact extends AndroidContact implements LocalResource {
     public static final String COLUMN_HASHCODE = ContactsContract.RawContacts.SYNC3;
 
     private boolean saveAsDirty = false; // When true, the resource will be saved as dirty
+    private boolean suspendAggregation = false; // When true, the resource will be created with aggregation suspended
 
     protected final Set<Long>
             cachedGroupMemberships = new HashSet<>(),
@@ -94,7 +94,7 @@ public class LocalContact extends AndroidContact implements LocalResource {
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                 // workaround for Android 7 which sets DIRTY flag when only meta-data is changed
-                int hashCode = dataHashCode();
+                String hashCode = currentHashCode();
                 values.put(COLUMN_HASHCODE, hashCode);
                 App.log.finer("Clearing dirty flag with eTag = " + eTag + ", contact hash = " + hashCode);
             }
@@ -102,7 +102,7 @@ public class LocalContact extends AndroidContact implements LocalResource {
             addressBook.provider.update(rawContactSyncURI(), values, null, null);
 
             this.eTag = eTag;
-        } catch (FileNotFoundException|RemoteException e) {
+        } catch (RemoteException e) {
             throw new ContactsStorageException("Couldn't clear dirty flag", e);
         }
     }
@@ -181,16 +181,27 @@ public class LocalContact extends AndroidContact implements LocalResource {
         return this.create();
     }
 
+    /**
+     * Creates the contact without having the provider aggregate it (which is expensive) right away, for
+     * inserting many contacts. See {@link LocalAddressBook#resumeAggregation()}.
+     */
+    public Uri createWithAggregationSuspended() throws ContactsStorageException {
+        suspendAggregation = true;
+        return this.create();
+    }
+
     @Override
     protected void buildContact(ContentProviderOperation.Builder builder, boolean update) {
         super.buildContact(builder, update);
         builder.withValue(ContactsContract.RawContacts.DIRTY, saveAsDirty ? 1 : 0);
+        if (suspendAggregation && !update)
+            builder.withValue(ContactsContract.RawContacts.AGGREGATION_MODE, ContactsContract.RawContacts.AGGREGATION_MODE_SUSPENDED);
     }
 
     /**
      * Calculates a hash code from the contact's data (VCard) and group memberships.
      * Attention: re-reads {@link #contact} from the database, discarding all changes in memory
-     * @return hash code of contact data (including group memberships)
+     * @return hash code of contact data (including group memberships), as stored before {@link ContactDataHash}
      */
     protected int dataHashCode() throws FileNotFoundException, ContactsStorageException {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
@@ -206,13 +217,21 @@ public class LocalContact extends AndroidContact implements LocalResource {
         return dataHash ^ groupHash;
     }
 
+    /**
+     * @return hash code of the contact's data rows as currently stored, see {@link ContactDataHash}
+     */
+    protected String currentHashCode() throws RemoteException, ContactsStorageException {
+        assertID();
+        return ContactDataHash.get(addressBook.provider, addressBook.syncAdapterURI(ContactsContract.RawContactsEntity.CONTENT_URI), id);
+    }
+
     public void updateHashCode(@Nullable BatchOperation batch) throws ContactsStorageException {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
             App.log.severe("updateHashCode() should not be called on Android <7");
 
         ContentValues values = new ContentValues(1);
         try {
-            int hashCode = dataHashCode();
+            String hashCode = currentHashCode();
             App.log.fine("Storing contact hash = " + hashCode);
             values.put(COLUMN_HASHCODE, hashCode);
 
@@ -224,27 +243,8 @@ public class LocalContact extends AndroidContact implements LocalResource {
                         .withValues(values);
                 batch.enqueue(new BatchOperation.Operation(builder));
             }
-        } catch(FileNotFoundException|RemoteException e) {
-            throw new ContactsStorageException("Couldn't store contact checksum", e);
-        }
-    }
-
-    public int getLastHashCode() throws ContactsStorageException {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
-            App.log.severe("getLastHashCode() should not be called on Android <7");
-
-        try {
-            Cursor c = addressBook.provider.query(rawContactSyncURI(), new String[] { COLUMN_HASHCODE }, null, null, null);
-            try {
-                if (c == null || !c.moveToNext() || c.isNull(0))
-                    return 0;
-                return c.getInt(0);
-            } finally {
-                if (c != null)
-                    c.close();
-            }
         } catch(RemoteException e) {
-            throw new ContactsStorageException("Could't read last hash code", e);
+            throw new ContactsStorageException("Couldn't store contact checksum", e);
         }
     }
 
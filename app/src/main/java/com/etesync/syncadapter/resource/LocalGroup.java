@@ -20,6 +20,8 @@ import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.Groups;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.RawContacts.Data;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
 
 import com.etesync.syncadapter.App;
@@ -27,11 +29,11 @@ import com.etesync.syncadapter.App;
 import org.apache.commons.lang3.ArrayUtils;
 
 import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -52,6 +54,8 @@ public class LocalGroup extends AndroidGroup implements LocalResource {
     /** marshalled list of member UIDs, as sent by server */
     public static final String COLUMN_PENDING_MEMBERS = Groups.SYNC3;
 
+    private static final int MEMBERSHIP_BATCH_SIZE = 250;
+
     public String getUuid() {
         return uuid;
     }
@@ -162,10 +166,16 @@ public class LocalGroup extends AndroidGroup implements LocalResource {
     /**
      * Processes all groups with non-null {@link #COLUMN_PENDING_MEMBERS}: the pending memberships
      * are (if possible) applied, keeping cached memberships in sync.
+     *
+     * Members are looked up in one UID map and the existing memberships of all these groups are read with one
+     * query. Only the memberships which actually changed are inserted/deleted, in batches of bounded size. The
+     * pending members of a group are only cleared after its changes, so an interrupted run is simply redone.
      * @param addressBook    address book to take groups from
      * @throws ContactsStorageException on contact provider errors
      */
     public static void applyPendingMemberships(LocalAddressBook addressBook) throws ContactsStorageException {
+        // group ID -> member UIDs, as sent by server
+        LongSparseArray<List<String>> pending = new LongSparseArray<>();
         try {
             Cursor cursor = addressBook.provider.query(
                     addressBook.syncAdapterURI(Groups.CONTENT_URI),
@@ -173,21 +183,7 @@ public class LocalGroup extends AndroidGroup implements LocalResource {
                     COLUMN_PENDING_MEMBERS + " IS NOT NULL", new String[] {},
                     null
             );
-
-            BatchOperation batch = new BatchOperation(addressBook.provider);
             while (cursor != null && cursor.moveToNext()) {
-                long id = cursor.getLong(0);
-                App.log.fine("Assigning members to group " + id);
-
-                // required for workaround for Android 7 which sets DIRTY flag when only meta-data is changed
-                Set<Long> changeContactIDs = new HashSet<>();
-
-                // delete all memberships and cached memberships for this group
-                for (LocalContact contact : addressBook.getByGroupMembership(id)) {
-                    contact.removeGroupMemberships(batch);
-                    changeContactIDs.add(contact.getId());
-                }
-
                 // extract list of member UIDs
                 List<String> members = new LinkedList<>();
                 byte[] raw = cursor.getBlob(1);
@@ -197,38 +193,157 @@ public class LocalGroup extends AndroidGroup implements LocalResource {
                 parcel.readStringList(members);
                 parcel.recycle();
 
-                // insert memberships
-                for (String uid : members) {
-                    App.log.fine("Assigning member: " + uid);
-                    try {
-                        LocalContact member = addressBook.findContactByUID(uid);
-                        member.addToGroup(batch, id);
-                        changeContactIDs.add(member.getId());
-                    } catch(FileNotFoundException e) {
-                        App.log.log(Level.WARNING, "Group member not found: " + uid, e);
-                    }
-                }
-
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
-                    // workaround for Android 7 which sets DIRTY flag when only meta-data is changed
-                    for (Long contactID : changeContactIDs) {
-                        LocalContact contact = new LocalContact(addressBook, contactID, null, null);
-                        contact.updateHashCode(batch);
-                    }
-
-                // remove pending memberships
-                batch.enqueue(new BatchOperation.Operation(
-                        ContentProviderOperation.newUpdate(addressBook.syncAdapterURI(ContentUris.withAppendedId(Groups.CONTENT_URI, id)))
-                                .withValue(COLUMN_PENDING_MEMBERS, null)
-                                .withYieldAllowed(true)
-                ));
-
-                batch.commit();
+                pending.put(cursor.getLong(0), members);
             }
-            cursor.close();
+            if (cursor != null)
+                cursor.close();
         } catch(RemoteException e) {
             throw new ContactsStorageException("Couldn't get pending memberships", e);
         }
+        if (pending.size() == 0)
+            return;
+
+        Map<String, Long> contactIDs = addressBook.getContactIDsByUID();
+        Memberships current = new Memberships(), cached = new Memberships();
+        readMemberships(addressBook, pending, current, cached);
+
+        // required for workaround for Android 7 which sets DIRTY flag when only meta-data is changed
+        Set<Long> changedContactIDs = new HashSet<>();
+
+        BoundedBatch batch = new BoundedBatch(addressBook);
+        for (Long rowID : current.duplicates)
+            batch.enqueue(ContentProviderOperation.newDelete(addressBook.syncAdapterURI(ContentUris.withAppendedId(ContactsContract.Data.CONTENT_URI, rowID))));
+        for (Long rowID : cached.duplicates)
+            batch.enqueue(ContentProviderOperation.newDelete(addressBook.syncAdapterURI(ContentUris.withAppendedId(ContactsContract.Data.CONTENT_URI, rowID))));
+
+        for (int i = 0; i < pending.size(); i++) {
+            long id = pending.keyAt(i);
+            App.log.fine("Assigning members to group " + id);
+
+            Set<Long> members = new HashSet<>();
+            for (String uid : pending.valueAt(i)) {
+                Long contactID = contactIDs.get(uid);
+                if (contactID != null)
+                    members.add(contactID);
+                else
+                    App.log.warning("Group member not found: " + uid);
+            }
+
+            applyDelta(batch, addressBook, id, members, current.get(id),
+                    GroupMembership.CONTENT_ITEM_TYPE, GroupMembership.GROUP_ROW_ID, changedContactIDs);
+            applyDelta(batch, addressBook, id, members, cached.get(id),
+                    CachedGroupMembership.CONTENT_ITEM_TYPE, CachedGroupMembership.GROUP_ID, null);
+
+            // remove pending memberships
+            batch.enqueue(ContentProviderOperation.newUpdate(addressBook.syncAdapterURI(ContentUris.withAppendedId(Groups.CONTENT_URI, id)))
+                    .withValue(COLUMN_PENDING_MEMBERS, null));
+        }
+        batch.commit();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && !changedContactIDs.isEmpty())
+            // workaround for Android 7 which sets DIRTY flag when only meta-data is changed
+            addressBook.updateHashCodes(changedContactIDs);
+    }
+
+    /**
+     * Reads the current and cached memberships of the given groups with one query.
+     */
+    private static void readMemberships(LocalAddressBook addressBook, LongSparseArray<?> groups, Memberships current, Memberships cached) throws ContactsStorageException {
+        long[] groupIDs = new long[groups.size()];
+        for (int i = 0; i < groupIDs.length; i++)
+            groupIDs[i] = groups.keyAt(i);
+
+        try {
+            // GroupMembership.GROUP_ROW_ID and CachedGroupMembership.GROUP_ID are the same column
+            Cursor cursor = addressBook.provider.query(addressBook.syncAdapterURI(ContactsContract.Data.CONTENT_URI),
+                    new String[] { ContactsContract.Data._ID, ContactsContract.Data.RAW_CONTACT_ID, ContactsContract.Data.MIMETYPE, GroupMembership.GROUP_ROW_ID },
+                    ContactsContract.Data.MIMETYPE + " IN (?,?) AND " + GroupMembership.GROUP_ROW_ID + " IN (" + TextUtils.join(",", ArrayUtils.toObject(groupIDs)) + ")",
+                    new String[] { GroupMembership.CONTENT_ITEM_TYPE, CachedGroupMembership.CONTENT_ITEM_TYPE },
+                    null);
+            while (cursor != null && cursor.moveToNext()) {
+                Memberships memberships = GroupMembership.CONTENT_ITEM_TYPE.equals(cursor.getString(2)) ? current : cached;
+                memberships.add(cursor.getLong(3), cursor.getLong(1), cursor.getLong(0));
+            }
+            if (cursor != null)
+                cursor.close();
+        } catch(RemoteException e) {
+            throw new ContactsStorageException("Couldn't query group memberships", e);
+        }
+    }
+
+    /**
+     * Enqueues what's needed to turn the existing memberships (of one kind) of a group into the given members.
+     * @param changedContactIDs the raw contact IDs whose memberships change are added to this set (if not null)
+     */
+    private static void applyDelta(BoundedBatch batch, LocalAddressBook addressBook, long groupID, Set<Long> members,
+                                   @Nullable LongSparseArray<Long> existing, String mimeType, String groupColumn,
+                                   @Nullable Set<Long> changedContactIDs) throws ContactsStorageException {
+        if (existing != null)
+            for (int i = 0; i < existing.size(); i++) {
+                long contactID = existing.keyAt(i);
+                if (!members.contains(contactID)) {
+                    batch.enqueue(ContentProviderOperation.newDelete(addressBook.syncAdapterURI(ContentUris.withAppendedId(ContactsContract.Data.CONTENT_URI, existing.valueAt(i)))));
+                    if (changedContactIDs != null)
+                        changedContactIDs.add(contactID);
+                }
+            }
+
+        for (Long contactID : members)
+            if (existing == null || existing.get(contactID) == null) {
+                batch.enqueue(ContentProviderOperation.newInsert(addressBook.syncAdapterURI(ContactsContract.Data.CONTENT_URI))
+                        .withValue(ContactsContract.Data.MIMETYPE, mimeType)
+                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, contactID)
+                        .withValue(groupColumn, groupID));
+                if (changedContactIDs != null)
+                    changedContactIDs.add(contactID);
+            }
+    }
+
+    /**
+     * Existing memberships of one kind: group ID -> raw contact ID -> data row ID
+     */
+    private static class Memberships extends LongSparseArray<LongSparseArray<Long>> {
+        /** data row IDs of memberships which exist more than once */
+        final List<Long> duplicates = new LinkedList<>();
+
+        void add(long groupID, long contactID, long rowID) {
+            LongSparseArray<Long> members = get(groupID);
+            if (members == null)
+                put(groupID, members = new LongSparseArray<>());
+            if (members.get(contactID) != null)
+                duplicates.add(rowID);
+            else
+                members.put(contactID, rowID);
+        }
+    }
+
+    /**
+     * Commits whenever {@link #MEMBERSHIP_BATCH_SIZE} operations have been enqueued, so that large groups
+     * don't exceed the limits of a single provider transaction.
+     */
+    private static class BoundedBatch {
+        final LocalAddressBook addressBook;
+        BatchOperation batch;
+        int size;
+
+        BoundedBatch(LocalAddressBook addressBook) {
+            this.addressBook = addressBook;
+            batch = new BatchOperation(addressBook.provider);
+        }
+
+        void enqueue(ContentProviderOperation.Builder builder) throws ContactsStorageException {
+            batch.enqueue(new BatchOperation.Operation(builder.withYieldAllowed(true)));
+            if (++size >= MEMBERSHIP_BATCH_SIZE)
+                commit();
+        }
+
+        void commit() throws ContactsStorageException {
+            if (size == 0)
+                return;
+            batch.commit();
+            batch = new BatchOperation(addressBook.provider);
+            size = 0;
+        }
     }
 
 
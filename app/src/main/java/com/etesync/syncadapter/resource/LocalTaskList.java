@@ -25,6 +25,8 @@ import org.dmfs.provider.tasks.TaskContract.TaskLists;
 import org.dmfs.provider.tasks.TaskContract.Tasks;
 
 import java.io.FileNotFoundException;
+import java.util.HashSet;
+import java.util.Set;
 
 import at.bitfire.ical4android.AndroidTaskList;
 import at.bitfire.ical4android.AndroidTaskListFactory;
@@ -129,6 +131,29 @@ public class LocalTaskList extends AndroidTaskList implements LocalCollection {
         }
     }
 
+    @Override
+    public Set<String> getUids() throws CalendarStorageException {
+        String where = Tasks.LIST_ID + "=? AND " + Tasks._DELETED + "==0 AND " + Tasks._SYNC_ID + " IS NOT NULL";
+        String whereArgs[] = {String.valueOf(getId())};
+
+        Set<String> uids = new HashSet<>();
+        try {
+            Cursor cursor = provider.client.query(
+                    syncAdapterURI(provider.tasksUri()),
+                    new String[] { Tasks._SYNC_ID },
+                    where, whereArgs, null);
+            try {
+                while (cursor.moveToNext())
+                    uids.add(cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+        } catch (RemoteException e) {
+            throw new CalendarStorageException("Couldn't query task UIDs", e);
+        }
+        return uids;
+    }
+
     // helpers
 
     public static boolean tasksProviderAvailable(@NonNull Context context) {
@@ -38,6 +38,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 
 import at.bitfire.vcard4android.ContactsStorageException;
@@ -75,13 +76,15 @@ public class AddressBooksSyncAdapterService extends SyncAdapterService {
                     return;
                 }
 
-                AccountSettings settings = new AccountSettings(getContext(), account);
+                AccountSettings settings = AccountSettings.getSnapshot(getContext(), account);
                 if (!extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL) && !checkSyncConditions(settings))
                     return;
 
-                new RefreshCollections(account, CollectionInfo.Type.ADDRESS_BOOK).run();
+                RefreshCollections refreshCollections = new RefreshCollections(account, settings, CollectionInfo.Type.ADDRESS_BOOK, extras);
+                Set<String> changed = refreshCollections.run();
 
-                updateLocalAddressBooks(contactsProvider, account);
+                updateLocalAddressBooks(contactsProvider, account, changed);
+                refreshCollections.finished();
 
                 contactsProvider.release();
 
@@ -121,7 +124,10 @@ public class AddressBooksSyncAdapterService extends SyncAdapterService {
         }
 
 
-        private void updateLocalAddressBooks(ContentProviderClient provider, Account account) throws ContactsStorageException, AuthenticatorException, OperationCanceledException, IOException {
+        /**
+         * @param changed uids of the collections to update (null for all), new ones are always created
+         */
+        private void updateLocalAddressBooks(ContentProviderClient provider, Account account, Set<String> changed) throws ContactsStorageException, AuthenticatorException, OperationCanceledException, IOException {
             final Context context = getContext();
             EntityDataStore<Persistable> data = ((App) getContext().getApplicationContext()).getData();
             ServiceEntity service = JournalModel.Service.fetch(data, account.name, CollectionInfo.Type.ADDRESS_BOOK);
@@ -143,8 +149,10 @@ public class AddressBooksSyncAdapterService extends SyncAdapterService {
                 } else {
                     // remote CollectionInfo found for this local collection, update data
                     JournalEntity journalEntity = remote.get(url);
-                    App.log.fine("Updating local address book " + url + " with " + journalEntity);
-                    addressBook.update(journalEntity);
+                    if ((changed == null) || changed.contains(url)) {
+                        App.log.fine("Updating local address book " + url + " with " + journalEntity);
+                        addressBook.update(journalEntity);
+                    }
                     // we already have a local collection for this remote collection, don't take into consideration anymore
                     remote.remove(url);
                 }
@@ -34,11 +34,12 @@ import net.fortuna.ical4j.model.property.Attendee;
 import org.acra.attachment.AcraContentProvider;
 import org.acra.util.IOUtils;
 import org.apache.commons.codec.Charsets;
+import org.apache.commons.io.input.ReaderInputStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -105,7 +106,7 @@ public class CalendarSyncManager extends SyncManager {
     }
 
     protected void processSyncEntry(SyncEntry cEntry) throws IOException, ContactsStorageException, CalendarStorageException, InvalidCalendarException {
-        InputStream is = new ByteArrayInputStream(cEntry.getContent().getBytes(Charsets.UTF_8));
+        InputStream is = new ReaderInputStream(new StringReader(cEntry.getContent()), Charsets.UTF_8);
 
         Event[] events = Event.fromStream(is, Charsets.UTF_8);
         if (events.length == 0) {
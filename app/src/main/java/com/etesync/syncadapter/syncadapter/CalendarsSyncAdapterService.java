@@ -17,13 +17,17 @@ import android.content.SyncResult;
 import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.provider.CalendarContract;
+import android.text.TextUtils;
 
 import com.etesync.syncadapter.AccountSettings;
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.Constants;
+import com.etesync.syncadapter.HttpClient;
 import com.etesync.syncadapter.NotificationHelper;
 import com.etesync.syncadapter.R;
 import com.etesync.syncadapter.journalmanager.Exceptions;
+import com.etesync.syncadapter.journalmanager.JournalEntriesBatchManager;
+import com.etesync.syncadapter.journalmanager.JournalEntryManager;
 import com.etesync.syncadapter.model.CollectionInfo;
 import com.etesync.syncadapter.model.JournalEntity;
 import com.etesync.syncadapter.model.JournalModel;
@@ -34,6 +38,7 @@ import com.etesync.syncadapter.ui.DebugInfoActivity;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 
 import at.bitfire.ical4android.CalendarStorageException;
@@ -65,19 +70,30 @@ public class CalendarsSyncAdapterService extends SyncAdapterService {
             notificationManager.cancel();
 
             try {
-                AccountSettings settings = new AccountSettings(getContext(), account);
+                AccountSettings settings = AccountSettings.getSnapshot(getContext(), account);
                 if (!extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL) && !checkSyncConditions(settings))
                     return;
 
-                new RefreshCollections(account, CollectionInfo.Type.CALENDAR).run();
+                RefreshCollections refreshCollections = new RefreshCollections(account, settings, CollectionInfo.Type.CALENDAR, extras);
+                Set<String> changed = refreshCollections.run();
 
-                updateLocalCalendars(provider, account, settings);
+                updateLocalCalendars(provider, account, settings, changed);
+                refreshCollections.finished();
 
                 HttpUrl principal = HttpUrl.get(settings.getUri());
+                Map<String, String> remoteHeads = JournalHeads.get(getContext(), account, settings, extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL));
 
-                for (LocalCalendar calendar : (LocalCalendar[]) LocalCalendar.find(account, provider, LocalCalendar.Factory.INSTANCE, CalendarContract.Calendars.SYNC_EVENTS + "!=0", null)) {
+                LocalCalendar[] calendars = (LocalCalendar[]) LocalCalendar.find(account, provider, LocalCalendar.Factory.INSTANCE, CalendarContract.Calendars.SYNC_EVENTS + "!=0", null);
+                Map<String, String> lastUids = getLastUids(account, calendars);
+                Map<String, List<JournalEntryManager.Entry>> prefetched = prefetchEntries(settings, lastUids, remoteHeads);
+
+                for (LocalCalendar calendar : calendars) {
                     App.log.info("Synchronizing calendar #" + calendar.getId() + ", URL: " + calendar.getName());
                     CalendarSyncManager syncManager = new CalendarSyncManager(getContext(), account, settings, extras, authority, syncResult, calendar, principal);
+                    syncManager.setRemoteHeads(remoteHeads);
+                    if ((prefetched != null) && prefetched.containsKey(calendar.getName())) {
+                        syncManager.setPrefetchedEntries(lastUids.get(calendar.getName()), prefetched.get(calendar.getName()));
+                    }
                     syncManager.performSync();
                 }
             } catch (Exceptions.ServiceUnavailableException e) {
@@ -107,7 +123,61 @@ public class CalendarsSyncAdapterService extends SyncAdapterService {
             App.log.info("Calendar sync complete");
         }
 
-        private void updateLocalCalendars(ContentProviderClient provider, Account account, AccountSettings settings) throws CalendarStorageException {
+        /**
+         * @return last cached entry uid of the calendars whose entries can be fetched in a batch, by journal uid.
+         * Journals with big entries are left out, they fetch smaller pages on their own.
+         */
+        private Map<String, String> getLastUids(Account account, LocalCalendar[] calendars) {
+            EntityDataStore<Persistable> data = ((App) getContext().getApplicationContext()).getData();
+            ServiceEntity service = JournalModel.Service.fetch(data, account.name, CollectionInfo.Type.CALENDAR);
+
+            Map<String, String> ret = new HashMap<>();
+            for (LocalCalendar calendar : calendars) {
+                JournalEntity journalEntity = JournalEntity.fetch(data, service, calendar.getName());
+                if ((journalEntity != null) &&
+                        (SyncManager.getInitialFetchLimit(JournalModel.JournalMeta.fetch(data, journalEntity)) == SyncManager.MAX_FETCH)) {
+                    ret.put(calendar.getName(), journalEntity.getLastUid(data));
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Fetches the first page of new entries of all the calendars that changed remotely with one request.
+         *
+         * @return map of journal uid to entries, or null if not available (in which case each calendar fetches its own)
+         */
+        private Map<String, List<JournalEntryManager.Entry>> prefetchEntries(AccountSettings settings, Map<String, String> lastUids, Map<String, String> remoteHeads) {
+            Map<String, String> changed = new HashMap<>();
+            for (Map.Entry<String, String> lastUid : lastUids.entrySet()) {
+                String journalUid = lastUid.getKey();
+                // The first sync of a journal needs the special handling in SyncManager.fetchEntries()
+                if (lastUid.getValue() == null) {
+                    continue;
+                }
+                if ((remoteHeads == null) || !TextUtils.equals(remoteHeads.get(journalUid), lastUid.getValue())) {
+                    changed.put(journalUid, lastUid.getValue());
+                }
+            }
+
+            // Not worth a batch
+            if (changed.size() < 2) {
+                return null;
+            }
+
+            try {
+                JournalEntriesBatchManager batchManager = new JournalEntriesBatchManager(HttpClient.create(getContext(), settings), HttpUrl.get(settings.getUri()));
+                return batchManager.list(changed, SyncManager.MAX_FETCH);
+            } catch (Exceptions.HttpException e) {
+                App.log.warning("Failed fetching entries in a batch, falling back: " + e.getLocalizedMessage());
+                return null;
+            }
+        }
+
+        /**
+         * @param changed uids of the collections to update (null for all), new ones are always created
+         */
+        private void updateLocalCalendars(ContentProviderClient provider, Account account, AccountSettings settings, Set<String> changed) throws CalendarStorageException {
             EntityDataStore<Persistable> data = ((App) getContext().getApplicationContext()).getData();
             ServiceEntity service = JournalModel.Service.fetch(data, account.name, CollectionInfo.Type.CALENDAR);
 
@@ -130,8 +200,10 @@ public class CalendarsSyncAdapterService extends SyncAdapterService {
                 } else {
                     // remote CollectionInfo found for this local collection, update data
                     JournalEntity journalEntity = remote.get(url);
-                    App.log.fine("Updating local calendar " + url + " with " + journalEntity);
-                    calendar.update(journalEntity, updateColors);
+                    if ((changed == null) || changed.contains(url)) {
+                        App.log.fine("Updating local calendar " + url + " with " + journalEntity);
+                        calendar.update(journalEntity, updateColors);
+                    }
                     // we already have a local calendar for this remote collection, don't take into consideration anymore
                     remote.remove(url);
                 }
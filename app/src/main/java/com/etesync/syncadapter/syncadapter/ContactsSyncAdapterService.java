@@ -65,7 +65,7 @@ public class ContactsSyncAdapterService extends SyncAdapterService {
 
                 AccountSettings settings;
                 try {
-                    settings = new AccountSettings(getContext(), addressBook.getMainAccount());
+                    settings = AccountSettings.getSnapshot(getContext(), addressBook.getMainAccount());
                 } catch (InvalidAccountException|ContactsStorageException e) {
                     App.log.info("Skipping sync due to invalid account.");
                     App.log.info(e.getLocalizedMessage());
@@ -80,6 +80,7 @@ public class ContactsSyncAdapterService extends SyncAdapterService {
 
                 HttpUrl principal = HttpUrl.get(settings.getUri());
                 ContactsSyncManager syncManager = new ContactsSyncManager(getContext(), account, settings, extras, authority, provider, syncResult, addressBook, principal);
+                syncManager.setRemoteHeads(JournalHeads.get(getContext(), addressBook.getMainAccount(), settings, extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL)));
                 syncManager.performSync();
             } catch (Exception | OutOfMemoryError e) {
                 int syncPhase = R.string.sync_phase_journals;
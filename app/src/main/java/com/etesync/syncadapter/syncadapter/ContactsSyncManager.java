@@ -35,15 +35,17 @@ import com.etesync.syncadapter.resource.LocalGroup;
 import com.etesync.syncadapter.resource.LocalResource;
 
 import org.apache.commons.codec.Charsets;
-import org.apache.commons.collections4.SetUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ReaderInputStream;
 
-import java.io.ByteArrayInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import at.bitfire.ical4android.CalendarStorageException;
 import at.bitfire.vcard4android.BatchOperation;
@@ -51,17 +53,24 @@ import at.bitfire.vcard4android.Contact;
 import at.bitfire.vcard4android.ContactsStorageException;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
 
 /**
  * <p>Synchronization manager for CardDAV collections; handles contacts and groups.</p>
  */
 public class ContactsSyncManager extends SyncManager {
+    /* PHOTO/LOGO properties (vCard 3 and 4) pointing to an external http(s) resource */
+    private static final Pattern EXTERNAL_PHOTO = Pattern.compile("^(?:PHOTO|LOGO)(?:;[^:\\r\\n]*)?:(https?://[^\\r\\n]+)$",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
     final private ContentProviderClient provider;
     final private HttpUrl remote;
 
+    /**
+     * Whether contacts are created with aggregation suspended, which is resumed for all of them at the end (see
+     * {@link #performSync()}).
+     */
+    private boolean bulkInsert = false;
+
     public ContactsSyncManager(Context context, Account account, AccountSettings settings, Bundle extras, String authority, ContentProviderClient provider, SyncResult result, LocalAddressBook localAddressBook, HttpUrl principal) throws Exceptions.IntegrityException, Exceptions.GenericCryptoException, ContactsStorageException {
         super(context, account, settings, extras, authority, result, localAddressBook.getURL(), CollectionInfo.Type.ADDRESS_BOOK, localAddressBook.getMainAccount().name);
         this.provider = provider;
@@ -85,6 +94,22 @@ public class ContactsSyncManager extends SyncManager {
         return context.getString(R.string.sync_successfully_contacts, account.name);
     }
 
+    @Override
+    public void performSync() {
+        try {
+            super.performSync();
+        } finally {
+            // Also when the sync failed, or was skipped and there are leftovers of an interrupted one
+            try {
+                int count = localAddressBook().resumeAggregation();
+                if (count > 0)
+                    App.log.info("Resumed aggregation of " + count + " inserted contacts");
+            } catch (ContactsStorageException e) {
+                App.log.log(Level.WARNING, "Couldn't resume aggregation", e);
+            }
+        }
+    }
+
     @Override
     protected boolean prepare() throws ContactsStorageException, CalendarStorageException {
         if (!super.prepare())
@@ -109,6 +134,9 @@ public class ContactsSyncManager extends SyncManager {
 
         journal = new JournalEntryManager(httpClient, remote, localAddressBook.getURL());
 
+        // Everything is going to be inserted (first sync or the contacts were cleared), no point in aggregating one by one
+        bulkInsert = (localAddressBook.count() == 0);
+
         localAddressBook.includeGroups = true;
 
         return true;
@@ -124,21 +152,13 @@ public class ContactsSyncManager extends SyncManager {
 
         // mark groups with changed members as dirty
         BatchOperation batch = new BatchOperation(addressBook.provider);
-        for (LocalContact contact : addressBook.getDirtyContacts()) {
-            try {
-                App.log.fine("Looking for changed group memberships of contact " + contact.getFileName());
-                Set<Long> cachedGroups = contact.getCachedGroupMemberships(),
-                        currentGroups = contact.getGroupMemberships();
-                for (Long groupID : SetUtils.disjunction(cachedGroups, currentGroups)) {
-                    App.log.fine("Marking group as dirty: " + groupID);
-                    batch.enqueue(new BatchOperation.Operation(
-                            ContentProviderOperation.newUpdate(addressBook.syncAdapterURI(ContentUris.withAppendedId(ContactsContract.Groups.CONTENT_URI, groupID)))
-                                    .withValue(ContactsContract.Groups.DIRTY, 1)
-                                    .withYieldAllowed(true)
-                    ));
-                }
-            } catch (FileNotFoundException ignored) {
-            }
+        for (long groupID : addressBook.getGroupsWithChangedMembers()) {
+            App.log.fine("Marking group as dirty: " + groupID);
+            batch.enqueue(new BatchOperation.Operation(
+                    ContentProviderOperation.newUpdate(addressBook.syncAdapterURI(ContentUris.withAppendedId(ContactsContract.Groups.CONTENT_URI, groupID)))
+                            .withValue(ContactsContract.Groups.DIRTY, 1)
+                            .withYieldAllowed(true)
+            ));
         }
         batch.commit();
     }
@@ -152,6 +172,24 @@ public class ContactsSyncManager extends SyncManager {
     }
 
 
+    @Override
+    protected void prefetchResources(List<SyncEntry> entries) throws InterruptedException {
+        Set<String> urls = new HashSet<>();
+        for (SyncEntry entry : entries) {
+            if (entry.isAction(SyncEntry.Actions.DELETE)) {
+                continue;
+            }
+            // unfold lines first, URLs are long
+            Matcher matcher = EXTERNAL_PHOTO.matcher(entry.getContent().replaceAll("\r?\n[ \t]", ""));
+            while (matcher.find()) {
+                urls.add(matcher.group(1).trim());
+            }
+        }
+
+        ResourceCache.getInstance(context).prefetch(ResourceDownloader.createClient(context), urls, null);
+    }
+
+
     // helpers
 
     private LocalAddressBook localAddressBook() {
@@ -159,7 +197,8 @@ public class ContactsSyncManager extends SyncManager {
     }
 
     protected void processSyncEntry(SyncEntry cEntry) throws IOException, ContactsStorageException, CalendarStorageException {
-        InputStream is = new ByteArrayInputStream(cEntry.getContent().getBytes(Charsets.UTF_8));
+        // Encoded while being parsed, big (e.g. with embedded photos) entries would exist twice otherwise
+        InputStream is = new ReaderInputStream(new StringReader(cEntry.getContent()), Charsets.UTF_8);
         Contact.Downloader downloader = new ResourceDownloader(context);
 
         Contact[] contacts = Contact.fromStream(is, Charsets.UTF_8, downloader);
@@ -226,7 +265,10 @@ public class ContactsSyncManager extends SyncManager {
             } else {
                 App.log.log(Level.INFO, "Creating local contact", newData.uid);
                 LocalContact contact = new LocalContact(localAddressBook(), newData, uuid, uuid);
-                contact.create();
+                if (bulkInsert)
+                    contact.createWithAggregationSuspended();
+                else
+                    contact.create();
 
                 local = contact;
             }
@@ -264,39 +306,20 @@ public class ContactsSyncManager extends SyncManager {
                 return null;
             }
 
+            // usually already prefetched, see prefetchResources()
+            return ResourceCache.getInstance(context).get(createClient(context), url, accepts);
+        }
+
+        static OkHttpClient createClient(Context context) {
             OkHttpClient resourceClient = HttpClient.create(context);
 
             // authenticate only against a certain host, and only upon request
             // resourceClient = HttpClient.addAuthentication(resourceClient, baseUrl.host(), settings.username(), settings.password());
 
             // allow redirects
-            resourceClient = resourceClient.newBuilder()
+            return resourceClient.newBuilder()
                     .followRedirects(true)
                     .build();
-
-            try {
-                Response response = resourceClient.newCall(new Request.Builder()
-                        .get()
-                        .url(httpUrl)
-                        .build()).execute();
-
-                ResponseBody body = response.body();
-                if (body != null) {
-                    InputStream stream = body.byteStream();
-                    try {
-                        if (response.isSuccessful() && stream != null) {
-                            return IOUtils.toByteArray(stream);
-                        } else
-                            App.log.severe("Couldn't download external resource");
-                    } finally {
-                        if (stream != null)
-                            stream.close();
-                    }
-                }
-            } catch (IOException e) {
-                App.log.log(Level.SEVERE, "Couldn't download external resource", e);
-            }
-            return null;
         }
     }
 
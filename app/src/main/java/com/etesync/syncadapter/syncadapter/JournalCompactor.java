@@ -0,0 +1,208 @@
+package com.etesync.syncadapter.syncadapter;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.etesync.syncadapter.App;
+import com.etesync.syncadapter.model.EntryEntity;
+import com.etesync.syncadapter.model.EntryIndex;
+import com.etesync.syncadapter.model.JournalEntity;
+import com.etesync.syncadapter.model.JournalMetaEntity;
+import com.etesync.syncadapter.model.JournalModel;
+import com.etesync.syncadapter.model.SyncEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+import io.requery.PersistenceException;
+import io.requery.Persistable;
+import io.requery.query.Result;
+import io.requery.sql.EntityDataStore;
+
+/**
+ * Applies the retention policy of a journal (see {@link JournalModel.JournalMeta}) to its locally cached entries.
+ *
+ * Kept are the recent entries within the policy, the latest entry of every resource that still exists and the
+ * last entry of the journal (which sync continues from). Everything else is deleted, and the freed pages are
+ * given back to the file system.
+ *
+ * Compaction runs on a background thread, see {@link #schedule(App, int)}. It updates the journal's metadata like
+ * syncs do, so it waits for running syncs to finish (see {@link #lockForSync()}) and holds new ones off meanwhile.
+ */
+class JournalCompactor {
+    private static final int DELETE_BATCH_SIZE = 500;
+    /* Only compact once the journal grew this much over its budget, so it doesn't happen on every sync */
+    private static final double SLACK = 0.1;
+
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final App app;
+    private final EntityDataStore<Persistable> data;
+
+    JournalCompactor(App app) {
+        this.app = app;
+        this.data = app.getData();
+    }
+
+    static boolean needsCompaction(JournalMetaEntity meta) {
+        return ((meta.getRetainEntries() > 0) && (meta.getEntryCount() > meta.getRetainEntries() * (1 + SLACK))) ||
+                ((meta.getRetainBytes() > 0) && (meta.getBytesStored() > meta.getRetainBytes() * (1 + SLACK)));
+    }
+
+    /**
+     * To be held while syncing, so compaction doesn't change the journal's metadata under the sync's feet.
+     */
+    static void lockForSync() {
+        lock.readLock().lock();
+    }
+
+    static void unlockForSync() {
+        lock.readLock().unlock();
+    }
+
+    /**
+     * Compacts the journal, if needed, off the calling thread.
+     */
+    static void schedule(final App app, final int journalId) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new JournalCompactor(app).compact(journalId);
+                } catch (SQLiteException | PersistenceException e) {
+                    // Not fatal, the cache will just be bigger than it should be until the next try
+                    App.log.log(Level.WARNING, "Failed compacting journal", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of deleted entries
+     */
+    int compact(int journalId) {
+        int deleted;
+        lock.writeLock().lock();
+        try {
+            // Fetched again, the journal may have been synced or removed since the compaction was scheduled
+            JournalEntity journal = data.findByKey(JournalEntity.class, journalId);
+            JournalMetaEntity meta = (journal != null) ? JournalModel.JournalMeta.fetch(data, journal) : null;
+            if ((meta == null) || !needsCompaction(meta)) {
+                return 0;
+            }
+            deleted = compact(journal, meta);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (deleted > 0) {
+            vacuum(app.getWritableDatabase());
+        }
+        return deleted;
+    }
+
+    private int compact(JournalEntity journal, final JournalMetaEntity meta) {
+        final List<Integer> obsolete = new ArrayList<>();
+        // Only what's needed to update meta, the entries themselves can be big
+        final List<SyncEntry.Actions> obsoleteActions = new ArrayList<>();
+        final List<Long> obsoleteSizes = new ArrayList<>();
+        Set<String> resources = new HashSet<>();
+
+        int index = 0;
+        long recentBytes = 0;
+        boolean recent = true;
+        Result<EntryEntity> result = data.select(EntryEntity.class).where(EntryEntity.JOURNAL.eq(journal)).orderBy(EntryEntity.ID.desc()).get();
+        try {
+            for (EntryEntity entry : result) {
+                SyncEntry syncEntry = entry.getContent();
+                long size = JournalModel.JournalMeta.getSize(syncEntry);
+
+                if (recent) {
+                    recent = ((meta.getRetainEntries() <= 0) || (index < meta.getRetainEntries())) &&
+                            ((meta.getRetainBytes() <= 0) || (recentBytes + size <= meta.getRetainBytes()));
+                }
+
+                // Prefer the indexed column, entries which weren't indexed yet have it null
+                String uid = (entry.getAction() != null) ? entry.getResourceUid() : syncEntry.getResourceUid();
+                boolean latestOfResource = (uid != null) && resources.add(uid);
+
+                // Entries we can't tell the resource of are kept, as they may be the only state of it
+                boolean keep = (index == 0) || recent || (uid == null) ||
+                        (latestOfResource && !syncEntry.isAction(SyncEntry.Actions.DELETE));
+                if (keep) {
+                    if (recent) {
+                        recentBytes += size;
+                    }
+                } else {
+                    obsolete.add(entry.getId());
+                    obsoleteActions.add(syncEntry.getAction());
+                    obsoleteSizes.add(size);
+                }
+                index++;
+            }
+        } finally {
+            result.close();
+        }
+
+        if (obsolete.isEmpty()) {
+            return 0;
+        }
+
+        final SQLiteDatabase db = app.getWritableDatabase();
+        App.log.info("Compacting journal " + journal.getUid() + ": deleting " + obsolete.size() + " of " + index + " entries");
+        for (int start = 0 ; start < obsolete.size() ; start += DELETE_BATCH_SIZE) {
+            final int end = Math.min(start + DELETE_BATCH_SIZE, obsolete.size());
+            final int batchStart = start;
+            data.runInTransaction(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    data.delete(EntryEntity.class).where(EntryEntity.ID.in(obsolete.subList(batchStart, end))).get().value();
+                    EntryIndex.remove(db, obsolete.subList(batchStart, end));
+                    for (int i = batchStart ; i < end ; i++) {
+                        JournalModel.JournalMeta.removeEntry(meta, obsoleteActions.get(i), obsoleteSizes.get(i));
+                    }
+                    data.update(meta);
+                    return null;
+                }
+            });
+        }
+
+        return obsolete.size();
+    }
+
+    /**
+     * Gives freed pages back to the file system, on databases created with incremental vacuuming (see App). Older
+     * ones would need a full vacuum first, which blocks all writers for too long to happen during a sync, so they
+     * just reuse the freed pages.
+     */
+    private static void vacuum(SQLiteDatabase db) {
+        if (db.inTransaction()) {
+            return;
+        }
+
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) {
+            // Has to be stepped through, every step frees a page
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+            try {
+                //noinspection StatementWithEmptyBody
+                while (cursor.moveToNext()) {
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
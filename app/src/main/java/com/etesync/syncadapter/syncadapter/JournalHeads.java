@@ -0,0 +1,78 @@
+package com.etesync.syncadapter.syncadapter;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.etesync.syncadapter.AccountSettings;
+import com.etesync.syncadapter.App;
+import com.etesync.syncadapter.HttpClient;
+import com.etesync.syncadapter.journalmanager.Exceptions;
+import com.etesync.syncadapter.journalmanager.JournalManager;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Per-account cache of the remote journal heads (uid of the last entry of each journal).
+ *
+ * Address books are synced one sync request at a time, so the result is kept for a short while to let
+ * the syncs of sibling address books share a single probe.
+ */
+class JournalHeads {
+    private static final long MAX_AGE = 30 * 1000;
+
+    private static final Map<Account, JournalHeads> cache = new HashMap<>();
+    private static final Set<String> unsupportedHosts = new HashSet<>();
+
+    private final long fetched;
+    private final Map<String, String> heads;
+
+    private JournalHeads(Map<String, String> heads) {
+        this.fetched = SystemClock.elapsedRealtime();
+        this.heads = heads;
+    }
+
+    /**
+     * @param manual whether the sync was requested by the user, who expects the latest changes, so the heads are
+     * fetched again rather than taken from the cache
+     * @return map of journal uid to last entry uid, or null if the heads aren't available (in which case a
+     * full sync has to be done).
+     */
+    static Map<String, String> get(Context context, Account account, AccountSettings settings, boolean manual) {
+        HttpUrl remote = HttpUrl.get(settings.getUri());
+
+        synchronized (cache) {
+            if (unsupportedHosts.contains(remote.host())) {
+                return null;
+            }
+            JournalHeads cached = cache.get(account);
+            if (!manual && (cached != null) && (SystemClock.elapsedRealtime() - cached.fetched < MAX_AGE)) {
+                return cached.heads;
+            }
+        }
+
+        Map<String, String> heads;
+        try {
+            JournalManager journalManager = new JournalManager(HttpClient.create(context, settings), remote);
+            heads = journalManager.listHeads();
+        } catch (Exceptions.HttpException e) {
+            // Not fatal, the actual sync will fail with a proper error if the server has issues
+            App.log.warning("Failed fetching journal heads: " + e.getLocalizedMessage());
+            return null;
+        }
+
+        synchronized (cache) {
+            if (heads == null) {
+                unsupportedHosts.add(remote.host());
+            } else {
+                cache.put(account, new JournalHeads(heads));
+            }
+        }
+        return heads;
+    }
+}
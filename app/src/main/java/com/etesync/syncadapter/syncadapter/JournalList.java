@@ -0,0 +1,127 @@
+package com.etesync.syncadapter.syncadapter;
+
+import android.accounts.Account;
+import android.os.SystemClock;
+import android.support.v4.util.Pair;
+
+import com.etesync.syncadapter.AccountSettings;
+import com.etesync.syncadapter.App;
+import com.etesync.syncadapter.journalmanager.Crypto;
+import com.etesync.syncadapter.journalmanager.Exceptions;
+import com.etesync.syncadapter.journalmanager.JournalManager;
+import com.etesync.syncadapter.model.CollectionInfo;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-account snapshot of the verified and decrypted journal list, shared by the calendar and address book
+ * sync adapters.
+ *
+ * The list is refetched after {@link #MAX_AGE} (or when revalidation is requested), conditionally if the server
+ * sent an ETag. Journals are only verified and decrypted again if their content hash changed.
+ */
+class JournalList {
+    private static final long MAX_AGE = 30 * 1000;
+
+    private static final Map<Account, JournalList> cache = new HashMap<>();
+
+    private final String eTag;
+    private final Map<String, Item> items;
+    private long fetched;
+
+    private static class Item {
+        final JournalManager.Journal journal;
+        final String hash;
+        final String content;
+
+        Item(JournalManager.Journal journal, String hash, String content) {
+            this.journal = journal;
+            this.hash = hash;
+            this.content = content;
+        }
+    }
+
+    private JournalList(String eTag, Map<String, Item> items) {
+        this.eTag = eTag;
+        this.items = items;
+        this.fetched = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @param revalidate whether to ask the server even if the snapshot is recent (e.g. for manual syncs, which
+     *                   may be requested right after changing collections)
+     * @return the journals of the given type together with their collection info. The collection infos are
+     * fresh copies, so callers are free to modify them.
+     */
+    static List<Pair<JournalManager.Journal, CollectionInfo>> get(Account account, AccountSettings settings, JournalManager journalsManager, CollectionInfo.Type type, boolean revalidate) throws Exceptions.HttpException, Exceptions.IntegrityException, Exceptions.GenericCryptoException {
+        JournalList snapshot;
+        // Hold the lock while fetching, so concurrent syncs of the same account share one request
+        synchronized (cache) {
+            snapshot = cache.get(account);
+            if ((snapshot == null) || revalidate || (SystemClock.elapsedRealtime() - snapshot.fetched >= MAX_AGE)) {
+                snapshot = fetch(settings, journalsManager, snapshot);
+                cache.put(account, snapshot);
+            }
+        }
+
+        return snapshot.collections(type);
+    }
+
+    static void invalidate(Account account) {
+        synchronized (cache) {
+            cache.remove(account);
+        }
+    }
+
+    private static JournalList fetch(AccountSettings settings, JournalManager journalsManager, JournalList previous) throws Exceptions.HttpException, Exceptions.IntegrityException, Exceptions.GenericCryptoException {
+        List<JournalManager.Journal> journals = journalsManager.list((previous != null) ? previous.eTag : null);
+        if (journals == null) {
+            App.log.info("Journal list not modified");
+            previous.fetched = SystemClock.elapsedRealtime();
+            return previous;
+        }
+
+        int decrypted = 0;
+        Map<String, Item> items = new LinkedHashMap<>();
+        for (JournalManager.Journal journal : journals) {
+            String hash = journal.getContentHash();
+            Item old = (previous != null) ? previous.items.get(journal.getUid()) : null;
+            if ((old != null) && old.hash.equals(hash)) {
+                items.put(journal.getUid(), old);
+                continue;
+            }
+
+            Crypto.CryptoManager crypto;
+            if (journal.getKey() != null) {
+                crypto = new Crypto.CryptoManager(journal.getVersion(), settings.getKeyPair(), journal.getKey());
+            } else {
+                crypto = new Crypto.CryptoManager(journal.getVersion(), settings.password(), journal.getUid());
+            }
+
+            journal.verify(crypto);
+
+            items.put(journal.getUid(), new Item(journal, hash, journal.getContent(crypto)));
+            decrypted++;
+        }
+        App.log.info("Journal list: " + decrypted + " of " + items.size() + " journals changed");
+
+        return new JournalList(journalsManager.getLastETag(), items);
+    }
+
+    private List<Pair<JournalManager.Journal, CollectionInfo>> collections(CollectionInfo.Type type) {
+        List<Pair<JournalManager.Journal, CollectionInfo>> ret = new LinkedList<>();
+        for (Item item : items.values()) {
+            CollectionInfo info = CollectionInfo.fromJson(item.content);
+            info.updateFromJournal(item.journal);
+
+            if (info.type.equals(type)) {
+                ret.add(new Pair<>(item.journal, info));
+            }
+        }
+        return ret;
+    }
+}
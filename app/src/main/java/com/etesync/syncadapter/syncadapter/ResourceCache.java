@@ -0,0 +1,271 @@
+package com.etesync.syncadapter.syncadapter;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.etesync.syncadapter.App;
+
+import org.apache.commons.codec.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Disk cache for external resources referenced from contacts (e.g. photo URLs).
+ *
+ * Content is stored content-addressed ("c-" + sha256 of the data), so the same photo referenced from
+ * several URLs is only stored once. For every URL there's a small index file ("u-" + sha256 of the URL)
+ * holding the ETag and the content hash, which is used for conditional requests. The cache is trimmed to
+ * {@link #MAX_SIZE} by evicting the least recently used content.
+ */
+public class ResourceCache {
+    private static final long MAX_SIZE = 20 * 1024 * 1024;
+    private static final int MAX_PARALLEL_DOWNLOADS = 4;
+    /* URLs validated against the server more recently than that are served from disk without asking again */
+    private static final long VALIDITY = 10 * 60 * 1000;
+
+    private static final String PREFIX_CONTENT = "c-";
+    private static final String PREFIX_URL = "u-";
+
+    private static ResourceCache instance = null;
+
+    private final File dir;
+    private final Map<String, Long> validated = new HashMap<>();
+
+    private ResourceCache(File dir) {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            App.log.warning("Couldn't create resource cache directory " + dir);
+        }
+    }
+
+    public static synchronized ResourceCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ResourceCache(new File(context.getCacheDir(), "resources"));
+        }
+        return instance;
+    }
+
+    /**
+     * Downloads (or revalidates) all the URLs in parallel, so later calls to {@link #get} are served from disk.
+     */
+    public void prefetch(final OkHttpClient client, Collection<String> urls, final String accepts) throws InterruptedException {
+        if (urls.isEmpty()) {
+            return;
+        }
+
+        App.log.info("Prefetching " + urls.size() + " external resources");
+        List<Callable<byte[]>> tasks = new ArrayList<>(urls.size());
+        for (final String url : urls) {
+            tasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return get(client, url, accepts);
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_DOWNLOADS, tasks.size()));
+        try {
+            executor.invokeAll(tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        trim();
+    }
+
+    /**
+     * @return the resource, or null if it couldn't be fetched
+     */
+    public byte[] get(OkHttpClient client, String url, String accepts) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl == null) {
+            App.log.log(Level.SEVERE, "Invalid external resource URL", url);
+            return null;
+        }
+
+        String urlKey = sha256(url.getBytes(Charsets.UTF_8));
+        File index = new File(dir, PREFIX_URL + urlKey);
+        String[] cached = readIndex(index);
+        File content = (cached != null) ? new File(dir, PREFIX_CONTENT + cached[1]) : null;
+        if ((content != null) && !content.isFile()) {
+            content = null;
+        }
+
+        if ((content != null) && isValidated(urlKey)) {
+            return readContent(content);
+        }
+
+        Request.Builder builder = new Request.Builder()
+                .get()
+                .url(httpUrl);
+        if (accepts != null) {
+            builder.header("Accept", accepts);
+        }
+        if ((content != null) && (cached[0].length() > 0)) {
+            builder.header("If-None-Match", cached[0]);
+        }
+
+        try {
+            Response response = client.newCall(builder.build()).execute();
+            ResponseBody body = response.body();
+            try {
+                if ((response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) && (content != null)) {
+                    setValidated(urlKey);
+                    return readContent(content);
+                } else if (response.isSuccessful() && (body != null)) {
+                    byte[] data = body.bytes();
+                    String eTag = response.header("ETag");
+                    store(index, (eTag != null) ? eTag : "", data);
+                    setValidated(urlKey);
+                    return data;
+                } else {
+                    App.log.severe("Couldn't download external resource: " + response.code());
+                }
+            } finally {
+                if (body != null) {
+                    body.close();
+                }
+            }
+        } catch (IOException e) {
+            App.log.log(Level.SEVERE, "Couldn't download external resource", e);
+        }
+
+        // Better stale than nothing
+        return (content != null) ? readContent(content) : null;
+    }
+
+    private boolean isValidated(String urlKey) {
+        synchronized (validated) {
+            Long time = validated.get(urlKey);
+            return (time != null) && (SystemClock.elapsedRealtime() - time < VALIDITY);
+        }
+    }
+
+    private void setValidated(String urlKey) {
+        synchronized (validated) {
+            validated.put(urlKey, SystemClock.elapsedRealtime());
+        }
+    }
+
+    private static String[] readIndex(File index) {
+        if (!index.isFile()) {
+            return null;
+        }
+        try {
+            String[] ret = FileUtils.readFileToString(index, "UTF-8").split("\n", -1);
+            return (ret.length == 2) ? ret : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private byte[] readContent(File content) {
+        try {
+            InputStream is = FileUtils.openInputStream(content);
+            try {
+                byte[] ret = IOUtils.toByteArray(is);
+                // mark as recently used
+                content.setLastModified(System.currentTimeMillis());
+                return ret;
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            App.log.log(Level.WARNING, "Couldn't read cached resource", e);
+            return null;
+        }
+    }
+
+    private synchronized void store(File index, String eTag, byte[] data) {
+        String contentKey = sha256(data);
+        try {
+            File content = new File(dir, PREFIX_CONTENT + contentKey);
+            if (!content.isFile()) {
+                File tmp = new File(dir, "tmp-" + contentKey);
+                FileUtils.writeByteArrayToFile(tmp, data);
+                if (!tmp.renameTo(content)) {
+                    tmp.delete();
+                }
+            } else {
+                content.setLastModified(System.currentTimeMillis());
+            }
+            FileUtils.writeStringToFile(index, eTag.replace("\n", "") + "\n" + contentKey, "UTF-8");
+        } catch (IOException e) {
+            App.log.log(Level.WARNING, "Couldn't cache resource", e);
+        }
+    }
+
+    /**
+     * Evicts the least recently used content until the cache fits {@link #MAX_SIZE}. Index files pointing to
+     * evicted content are simply treated as misses.
+     */
+    synchronized void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> contents = new ArrayList<>();
+        long size = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(PREFIX_CONTENT)) {
+                contents.add(file);
+                size += file.length();
+            }
+        }
+        if (size <= MAX_SIZE) {
+            return;
+        }
+
+        File[] sorted = contents.toArray(new File[contents.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+        for (File file : sorted) {
+            if (size <= MAX_SIZE) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SyncResult;
@@ -28,11 +29,15 @@ import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.util.Pair;
+import android.text.TextUtils;
 
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
 import com.etesync.syncadapter.AccountSettings;
@@ -48,6 +53,7 @@ import com.etesync.syncadapter.model.CollectionInfo;
 import com.etesync.syncadapter.model.JournalEntity;
 import com.etesync.syncadapter.model.JournalModel;
 import com.etesync.syncadapter.model.ServiceEntity;
+import com.etesync.syncadapter.model.Settings;
 import com.etesync.syncadapter.ui.PermissionsActivity;
 
 import io.requery.Persistable;
@@ -80,6 +86,9 @@ public abstract class SyncAdapterService extends Service {
 
             // required for dav4android (ServiceLoader)
             Thread.currentThread().setContextClassLoader(getContext().getClassLoader());
+
+            // In case the broadcast of a change in another process didn't make it (see App.ReinitSettingsReceiver)
+            Settings.getInstance(getContext()).reload();
         }
 
         @Override
@@ -131,42 +140,32 @@ public abstract class SyncAdapterService extends Service {
 
         protected class RefreshCollections {
             final private Account account;
+            final private AccountSettings settings;
             final private Context context;
             final private CollectionInfo.Type serviceType;
+            final private boolean manual;
 
-            RefreshCollections(Account account, CollectionInfo.Type serviceType) {
+            RefreshCollections(Account account, AccountSettings settings, CollectionInfo.Type serviceType, Bundle extras) {
                 this.account = account;
+                this.settings = settings;
                 this.serviceType = serviceType;
+                this.manual = extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL);
                 context = getContext();
             }
 
-            void run() throws Exceptions.HttpException, Exceptions.IntegrityException, InvalidAccountException, Exceptions.GenericCryptoException {
+            /**
+             * @return uids of the collections which have been added or changed, so only those have to be
+             * updated locally. null for manual syncs, and if the local collections weren't updated after the
+             * previous refresh (see {@link #finished()}), for which all collections should be updated.
+             */
+            Set<String> run() throws Exceptions.HttpException, Exceptions.IntegrityException, InvalidAccountException, Exceptions.GenericCryptoException {
                 App.log.info("Refreshing " + serviceType + " collections of service #" + serviceType.toString());
 
-                AccountSettings settings = new AccountSettings(context, account);
                 OkHttpClient httpClient = HttpClient.create(context, settings);
 
                 JournalManager journalsManager = new JournalManager(httpClient, HttpUrl.get(settings.getUri()));
 
-                List<Pair<JournalManager.Journal, CollectionInfo>> journals = new LinkedList<>();
-
-                for (JournalManager.Journal journal : journalsManager.list()) {
-                    Crypto.CryptoManager crypto;
-                    if (journal.getKey() != null) {
-                        crypto = new Crypto.CryptoManager(journal.getVersion(), settings.getKeyPair(), journal.getKey());
-                    } else {
-                        crypto = new Crypto.CryptoManager(journal.getVersion(), settings.password(), journal.getUid());
-                    }
-
-                    journal.verify(crypto);
-
-                    CollectionInfo info = CollectionInfo.fromJson(journal.getContent(crypto));
-                    info.updateFromJournal(journal);
-
-                    if (info.type.equals(serviceType)) {
-                        journals.add(new Pair<>(journal, info));
-                    }
-                }
+                List<Pair<JournalManager.Journal, CollectionInfo>> journals = JournalList.get(account, settings, journalsManager, serviceType, manual);
 
                 if (journals.isEmpty()) {
                     CollectionInfo info = CollectionInfo.defaultForServiceType(serviceType);
@@ -174,43 +173,87 @@ public abstract class SyncAdapterService extends Service {
                     Crypto.CryptoManager crypto = new Crypto.CryptoManager(info.version, settings.password(), info.uid);
                     JournalManager.Journal journal = new JournalManager.Journal(crypto, info.toJson(), info.uid);
                     journalsManager.create(journal);
+                    JournalList.invalidate(account);
                     journals.add(new Pair<>(journal, info));
                 }
 
-                saveCollections(journals);
-            }
-
-            private void saveCollections(Iterable<Pair<JournalManager.Journal, CollectionInfo>> journals) {
-                EntityDataStore<Persistable> data = ((App) context.getApplicationContext()).getData();
-                ServiceEntity service =  JournalModel.Service.fetch(data, account.name, serviceType);
+                // The journals are committed before the local collections are updated, so remember to
+                // update all of them if we don't get that far
+                boolean pending = settings.getCollectionsRefreshPending(serviceType);
+                settings.setCollectionsRefreshPending(serviceType, true);
 
-                Map<String, JournalEntity> existing = new HashMap<>();
-                for (JournalEntity journalEntity : JournalEntity.getJournals(data, service)) {
-                    existing.put(journalEntity.getUid(), journalEntity);
-                }
-
-                for (Pair<JournalManager.Journal, CollectionInfo> pair : journals) {
-                    JournalManager.Journal journal = pair.first;
-                    CollectionInfo collection = pair.second;
-                    App.log.log(Level.FINE, "Saving collection", journal.getUid());
-
-                    collection.serviceID = service.getId();
-                    JournalEntity journalEntity = JournalEntity.fetchOrCreate(data, collection);
-                    journalEntity.setOwner(journal.getOwner());
-                    journalEntity.setEncryptedKey(journal.getKey());
-                    journalEntity.setReadOnly(journal.isReadOnly());
-                    journalEntity.setDeleted(false);
-                    data.upsert(journalEntity);
+                Set<String> changed = saveCollections(journals);
+                return (manual || pending) ? null : changed;
+            }
 
-                    existing.remove(collection.uid);
-                }
+            /**
+             * To be called after the local collections have been updated with the result of {@link #run()}.
+             */
+            void finished() {
+                settings.setCollectionsRefreshPending(serviceType, false);
+            }
 
-                for (JournalEntity journalEntity : existing.values()) {
-                    App.log.log(Level.FINE, "Deleting collection", journalEntity.getUid());
+            /**
+             * Reconciles the journals in the database with the given (remote) ones in a single transaction.
+             *
+             * @return uids of the journals which have been added or changed
+             */
+            private Set<String> saveCollections(final Iterable<Pair<JournalManager.Journal, CollectionInfo>> journals) {
+                final EntityDataStore<Persistable> data = ((App) context.getApplicationContext()).getData();
+                final ServiceEntity service =  JournalModel.Service.fetch(data, account.name, serviceType);
+
+                return data.runInTransaction(new Callable<Set<String>>() {
+                    @Override
+                    public Set<String> call() {
+                        Map<String, JournalEntity> existing = new HashMap<>();
+                        for (JournalEntity journalEntity : JournalEntity.getJournals(data, service)) {
+                            existing.put(journalEntity.getUid(), journalEntity);
+                        }
+
+                        Set<String> changed = new HashSet<>();
+                        for (Pair<JournalManager.Journal, CollectionInfo> pair : journals) {
+                            JournalManager.Journal journal = pair.first;
+                            CollectionInfo collection = pair.second;
+                            collection.serviceID = service.getId();
+
+                            JournalEntity journalEntity = existing.remove(collection.uid);
+                            if ((journalEntity != null) && !hasChanged(journalEntity, journal, collection)) {
+                                continue;
+                            }
+
+                            App.log.log(Level.FINE, "Saving collection", journal.getUid());
+                            if (journalEntity == null) {
+                                // New, or previously deleted (which isn't in the existing map)
+                                journalEntity = JournalEntity.fetchOrCreate(data, collection);
+                            } else {
+                                journalEntity.setInfo(collection);
+                            }
+                            journalEntity.setOwner(journal.getOwner());
+                            journalEntity.setEncryptedKey(journal.getKey());
+                            journalEntity.setReadOnly(journal.isReadOnly());
+                            journalEntity.setDeleted(false);
+                            data.upsert(journalEntity);
+
+                            changed.add(collection.uid);
+                        }
+
+                        for (JournalEntity journalEntity : existing.values()) {
+                            App.log.log(Level.FINE, "Deleting collection", journalEntity.getUid());
+
+                            journalEntity.setDeleted(true);
+                            data.update(journalEntity);
+                        }
+
+                        return changed;
+                    }
+                });
+            }
 
-                    journalEntity.setDeleted(true);
-                    data.update(journalEntity);
-                }
+            private boolean hasChanged(JournalEntity journalEntity, JournalManager.Journal journal, CollectionInfo collection) {
+                return !collection.toJson().equals(journalEntity.getInfo().toJson()) ||
+                        !TextUtils.equals(journal.getOwner(), journalEntity.getOwner()) ||
+                        !Arrays.equals(journal.getKey(), journalEntity.getEncryptedKey()) ||
+                        (journal.isReadOnly() != journalEntity.isReadOnly());
             }
         }
     }
@@ -13,7 +13,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SyncResult;
 import android.content.res.Resources;
+import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
+import android.text.TextUtils;
 
 import com.etesync.syncadapter.AccountSettings;
 import com.etesync.syncadapter.App;
@@ -26,30 +28,41 @@ import com.etesync.syncadapter.journalmanager.Exceptions;
 import com.etesync.syncadapter.journalmanager.JournalEntryManager;
 import com.etesync.syncadapter.model.CollectionInfo;
 import com.etesync.syncadapter.model.EntryEntity;
+import com.etesync.syncadapter.model.EntryIndex;
 import com.etesync.syncadapter.model.JournalEntity;
+import com.etesync.syncadapter.model.JournalMetaEntity;
 import com.etesync.syncadapter.model.JournalModel;
-import com.etesync.syncadapter.model.ServiceDB;
 import com.etesync.syncadapter.model.ServiceEntity;
 import com.etesync.syncadapter.model.Settings;
 import com.etesync.syncadapter.model.SyncEntry;
+import com.etesync.syncadapter.model.SyncEntryCodec;
 import com.etesync.syncadapter.resource.LocalCollection;
 import com.etesync.syncadapter.resource.LocalResource;
 import com.etesync.syncadapter.ui.DebugInfoActivity;
 import com.etesync.syncadapter.ui.ViewCollectionActivity;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
 import at.bitfire.ical4android.CalendarStorageException;
 import at.bitfire.ical4android.InvalidCalendarException;
 import at.bitfire.vcard4android.ContactsStorageException;
+import io.requery.PersistenceException;
 import io.requery.Persistable;
+import io.requery.query.Result;
 import io.requery.sql.EntityDataStore;
 import okhttp3.OkHttpClient;
 
@@ -57,8 +70,20 @@ import static com.etesync.syncadapter.Constants.KEY_ACCOUNT;
 import static com.etesync.syncadapter.model.SyncEntry.Actions.ADD;
 
 abstract public class SyncManager {
-    private static final int MAX_FETCH = 50;
+    /**
+     * Sync extra to compare the local collections with the cached journals (and repair them) right away.
+     */
+    public static final String SYNC_EXTRAS_DRIFT_CHECK = "drift_check";
+
+    static final int MAX_FETCH = 50;
     private static final int MAX_PUSH = 30;
+    /* Budget for the (encrypted) content of the entries of a fetched or pushed page, which are held in memory */
+    private static final long MAX_PAGE_BYTES = 4 * 1024 * 1024;
+    private static final int INDEX_BATCH_SIZE = 200;
+    private static final int REBUILD_BATCH_SIZE = 50;
+    private static final long DRIFT_CHECK_INTERVAL = 7 * 24 * 3600 * 1000L;
+    /* A drift check removes nothing if more than one in this many local resources would go */
+    private static final int MAX_DRIFT_EXTRA_SHARE = 10;
 
     protected final NotificationHelper notificationManager;
     protected final CollectionInfo info;
@@ -77,6 +102,7 @@ abstract public class SyncManager {
 
     protected JournalEntryManager journal;
     private JournalEntity _journalEntity;
+    private JournalMetaEntity _journalMeta;
 
     private final Crypto.CryptoManager crypto;
 
@@ -87,10 +113,29 @@ abstract public class SyncManager {
      */
     private String remoteCTag = null;
 
+    /**
+     * Last entry uid of each remote journal, as returned by the heads probe (null if not available).
+     */
+    private Map<String, String> remoteHeads = null;
+
+    /**
+     * First page of remote entries, if it was already fetched along with other journals, and the last uid it follows.
+     */
+    private List<JournalEntryManager.Entry> prefetchedEntries = null;
+    private String prefetchedLast = null;
+
     /**
      * Syncable local journal entries.
      */
     private List<JournalEntryManager.Entry> localEntries;
+    private boolean moreLocalEntries;
+
+    /**
+     * Number of remote entries to fetch at once, lowered for journals with big entries (see {@link #MAX_PAGE_BYTES}).
+     * 0 until the first fetch, which goes by the cached entries (see {@link #getInitialFetchLimit}).
+     */
+    private int fetchLimit = 0;
+    private boolean moreRemoteEntries;
 
     /**
      * Syncable remote journal entries (fetch from server).
@@ -141,12 +186,23 @@ abstract public class SyncManager {
     @TargetApi(21)
     public void performSync() {
         int syncPhase = R.string.sync_phase_prepare;
+        JournalCompactor.lockForSync();
         try {
+            if (isUpToDate()) {
+                App.log.info("No remote or local changes, skipping sync");
+                // The retention policy may have changed in the meantime
+                scheduleCompaction();
+                return;
+            }
+
             App.log.info("Sync phase: " + context.getString(syncPhase));
             if (!prepare()) {
                 App.log.info("No reason to synchronize, aborting");
                 return;
             }
+            // JSON push bodies are mostly base64, which gzip shrinks considerably
+            journal.setCompressRequests(true);
+            journal.setSpillDirectory(new File(context.getCacheDir(), "push"));
 
             if (Thread.interrupted())
                 throw new InterruptedException();
@@ -160,6 +216,16 @@ abstract public class SyncManager {
             App.log.info("Sync phase: " + context.getString(syncPhase));
             prepareLocal();
 
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (needsRebuild()) {
+                syncPhase = R.string.sync_phase_rebuild_local;
+                App.log.info("Sync phase: " + context.getString(syncPhase));
+                rebuildFromCache();
+            } else if (needsDriftCheck()) {
+                checkDrift();
+            }
+
             do {
                 if (Thread.interrupted())
                     throw new InterruptedException();
@@ -172,7 +238,7 @@ abstract public class SyncManager {
                 syncPhase = R.string.sync_phase_apply_remote_entries;
                 App.log.info("Sync phase: " + context.getString(syncPhase));
                 applyRemoteEntries();
-            } while (remoteEntries.size() == MAX_FETCH);
+            } while (moreRemoteEntries);
 
             do {
                 /* Create journal entries out of local changes. */
@@ -195,7 +261,7 @@ abstract public class SyncManager {
                 syncPhase = R.string.sync_phase_push_entries;
                 App.log.info("Sync phase: " + context.getString(syncPhase));
                 pushEntries();
-            } while (localEntries.size() == MAX_PUSH);
+            } while (moreLocalEntries);
 
             /* Cleanup and finalize changes */
             if (Thread.interrupted())
@@ -203,6 +269,11 @@ abstract public class SyncManager {
             syncPhase = R.string.sync_phase_post_processing;
             App.log.info("Sync phase: " + context.getString(syncPhase));
             postProcess();
+            updateSyncTime();
+            indexEntries();
+            scheduleCompaction();
+            EntryIndex.scheduleUpdate((App) context.getApplicationContext());
+            SyncEntryCodec.scheduleCompressAll((App) context.getApplicationContext());
 
             notifyUserOnSync();
 
@@ -239,13 +310,14 @@ abstract public class SyncManager {
             }
 
             notificationManager.notify(getSyncErrorTitle(), context.getString(syncPhase));
+        } finally {
+            JournalCompactor.unlockForSync();
         }
     }
 
-    private void notifyUserOnSync() {
+    private void notifyUserOnSync() throws Exceptions.IntegrityException {
         Settings.ChangeNotification changeNotification =
-                new Settings(new ServiceDB.OpenHelper(context).getReadableDatabase())
-                        .getChangeNotification(App.CHANGE_NOTIFICATION);
+                Settings.getInstance(context).getChangeNotification(App.CHANGE_NOTIFICATION);
         if (remoteEntries.isEmpty() ||
                 changeNotification.equals(Settings.ChangeNotification.NONE)) {
             return;
@@ -288,6 +360,45 @@ abstract public class SyncManager {
                 intent);
     }
 
+    public void setRemoteHeads(Map<String, String> remoteHeads) {
+        this.remoteHeads = remoteHeads;
+    }
+
+    /**
+     * Hands over the (unverified) first page of entries following last, fetched in a batch with other journals.
+     */
+    public void setPrefetchedEntries(String last, List<JournalEntryManager.Entry> entries) {
+        this.prefetchedLast = last;
+        this.prefetchedEntries = entries;
+    }
+
+    /**
+     * Checks the remote journal head against our last entry, and whether there is anything to push.
+     *
+     * @return true if both sides are unchanged and the sync can be skipped altogether
+     */
+    private boolean isUpToDate() throws CalendarStorageException, ContactsStorageException {
+        if ((remoteHeads == null) || !remoteHeads.containsKey(info.uid)) {
+            return false;
+        }
+        if (needsDriftCheck()) {
+            // Compares local data only, so it's due regardless of changes
+            return false;
+        }
+
+        String remoteHead = remoteHeads.get(info.uid);
+        if (!TextUtils.equals(remoteHead, getJournalEntity().getLastUid(data))) {
+            return false;
+        }
+
+        if ((localCollection.getDeleted().length != 0) || (localCollection.getDirty().length != 0)) {
+            return false;
+        }
+
+        // The local collection may have been cleared, with nothing changed on either side (see needsRebuild)
+        return (localCollection.count() > 0) || !hasLatestState();
+    }
+
     /**
      * Prepares synchronization (for instance, allocates necessary resources).
      *
@@ -306,15 +417,76 @@ abstract public class SyncManager {
         return _journalEntity;
     }
 
-    private void persistSyncEntry(String uid, SyncEntry syncEntry) {
-        EntryEntity entry = new EntryEntity();
+    private JournalMetaEntity getJournalMeta() {
+        if (_journalMeta == null)
+            _journalMeta = JournalModel.JournalMeta.fetchOrCreate(data, getJournalEntity());
+        return _journalMeta;
+    }
+
+    private void persistSyncEntry(final String uid, final SyncEntry syncEntry) {
+        final EntryEntity entry = new EntryEntity();
         entry.setUid(uid);
-        entry.setContent(syncEntry);
+        JournalModel.Entry.setContent(entry, syncEntry);
         entry.setJournal(getJournalEntity());
-        data.insert(entry);
+
+        final JournalMetaEntity meta = getJournalMeta();
+        try {
+            data.runInTransaction(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    data.insert(entry);
+                    JournalModel.JournalMeta.addEntry(meta, uid, syncEntry);
+                    data.update(meta);
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            // The in-memory copy may be ahead of the database now
+            _journalMeta = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Fills the extracted columns of entries cached before they existed, a batch at a time.
+     */
+    private void indexEntries() {
+        try {
+            int count = 0, indexed;
+            do {
+                indexed = JournalModel.Entry.indexPending(data, getJournalEntity(), INDEX_BATCH_SIZE);
+                count += indexed;
+            } while (indexed == INDEX_BATCH_SIZE);
+
+            if (count > 0) {
+                App.log.info("Indexed " + count + " cached entries");
+            }
+        } catch (SQLiteException | PersistenceException e) {
+            // Not fatal, will be retried on the next sync
+            App.log.log(Level.WARNING, "Failed indexing cached entries", e);
+        }
+    }
+
+    /**
+     * Applies the journal's retention policy to the cached entries in the background, if it grew beyond it.
+     */
+    private void scheduleCompaction() {
+        if (JournalCompactor.needsCompaction(getJournalMeta())) {
+            JournalCompactor.schedule((App) context.getApplicationContext(), getJournalEntity().getId());
+        }
+    }
+
+    private void updateSyncTime() {
+        JournalMetaEntity meta = getJournalMeta();
+        long now = System.currentTimeMillis();
+        if (meta.getFirstSync() == 0) {
+            meta.setFirstSync(now);
+        }
+        meta.setLastSync(now);
+        data.update(meta);
     }
 
-    protected void applyLocalEntries() throws IOException, ContactsStorageException, CalendarStorageException, Exceptions.HttpException, InvalidCalendarException, InterruptedException {
+    protected void applyLocalEntries() throws IOException, ContactsStorageException, CalendarStorageException, Exceptions.HttpException, InvalidCalendarException, InterruptedException, Exceptions.IntegrityException {
         // FIXME: Need a better strategy
         // We re-apply local entries so our changes override whatever was written in the remote.
         String strTotal = String.valueOf(localEntries.size());
@@ -339,11 +511,32 @@ abstract public class SyncManager {
     protected void queryCapabilities() throws IOException, CalendarStorageException, ContactsStorageException {
     }
 
+    /**
+     * @return number of entries to fetch at once before any page has been seen, so that a page of entries the
+     * size of the cached ones stays within {@link #MAX_PAGE_BYTES}
+     */
+    static int getInitialFetchLimit(JournalMetaEntity meta) {
+        if ((meta == null) || (meta.getEntryCount() == 0) || (meta.getBytesStored() <= 0)) {
+            return MAX_FETCH;
+        }
+        // Fetched content is the base64 of the encrypted entry, about a third bigger than the cached JSON
+        long entrySize = Math.max(1, meta.getBytesStored() * 4 / 3 / meta.getEntryCount());
+        return (int) Math.max(1, Math.min(MAX_FETCH, MAX_PAGE_BYTES / entrySize));
+    }
+
     protected void fetchEntries() throws Exceptions.HttpException, ContactsStorageException, CalendarStorageException, Exceptions.IntegrityException {
-        int count = data.count(EntryEntity.class).where(EntryEntity.JOURNAL.eq(getJournalEntity())).get().value();
+        int count = getJournalMeta().getEntryCount();
+        if (fetchLimit == 0) {
+            fetchLimit = getInitialFetchLimit(getJournalMeta());
+            if (fetchLimit < MAX_FETCH) {
+                App.log.info("Big cached entries, fetching " + fetchLimit + " at a time");
+            }
+        }
+        int limit = fetchLimit;
         if ((remoteCTag != null) && (count == 0)) {
             // If we are updating an existing installation with no saved journal, we need to add
-            remoteEntries = journal.list(crypto, null, MAX_FETCH);
+            remoteEntries = journal.list(crypto, null, limit);
+            moreRemoteEntries = (remoteEntries.size() == limit);
             int i = 0;
             for (JournalEntryManager.Entry entry : remoteEntries) {
                 SyncEntry cEntry = SyncEntry.fromJournalEntry(crypto, entry);
@@ -354,18 +547,40 @@ abstract public class SyncManager {
                     break;
                 }
             }
+        } else if ((prefetchedEntries != null) && TextUtils.equals(prefetchedLast, remoteCTag)) {
+            JournalEntryManager.verify(crypto, remoteCTag, prefetchedEntries);
+            remoteEntries = prefetchedEntries;
+            moreRemoteEntries = (remoteEntries.size() == MAX_FETCH);
         } else {
-            remoteEntries = journal.list(crypto, remoteCTag, MAX_FETCH);
+            remoteEntries = journal.list(crypto, remoteCTag, limit);
+            moreRemoteEntries = (remoteEntries.size() == limit);
+        }
+        // Only good for the first page
+        prefetchedEntries = null;
+
+        // Fetch pages of about MAX_PAGE_BYTES, judging by this one
+        long bytes = JournalEntryManager.getContentSize(remoteEntries);
+        if (bytes > 0) {
+            fetchLimit = (int) Math.max(1, Math.min(MAX_FETCH, MAX_PAGE_BYTES * remoteEntries.size() / bytes));
+            if (fetchLimit < MAX_FETCH) {
+                App.log.info("Big entries (" + bytes + " bytes in this page), fetching " + fetchLimit + " at a time");
+            }
         }
 
         App.log.info("Fetched " + String.valueOf(remoteEntries.size()) + " entries");
     }
 
-    protected void applyRemoteEntries() throws IOException, ContactsStorageException, CalendarStorageException, InvalidCalendarException, InterruptedException {
+    protected void applyRemoteEntries() throws IOException, ContactsStorageException, CalendarStorageException, InvalidCalendarException, InterruptedException, Exceptions.IntegrityException {
         // Process new vcards from server
         String strTotal = String.valueOf(remoteEntries.size());
         int i = 0;
 
+        List<SyncEntry> cEntries = new ArrayList<>(remoteEntries.size());
+        for (JournalEntryManager.Entry entry : remoteEntries) {
+            cEntries.add(SyncEntry.fromJournalEntry(crypto, entry));
+        }
+        prefetchResources(cEntries);
+
         for (JournalEntryManager.Entry entry : remoteEntries) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
@@ -373,7 +588,7 @@ abstract public class SyncManager {
             i++;
             App.log.info("Processing (" + String.valueOf(i) + "/" + strTotal + ") " + entry.toString());
 
-            SyncEntry cEntry = SyncEntry.fromJournalEntry(crypto, entry);
+            SyncEntry cEntry = cEntries.get(i - 1);
             App.log.info("Processing resource for journal entry");
             processSyncEntry(cEntry);
 
@@ -383,7 +598,13 @@ abstract public class SyncManager {
         }
     }
 
-    protected void pushEntries() throws Exceptions.HttpException, IOException, ContactsStorageException, CalendarStorageException {
+    /**
+     * Called with a page of remote entries before they are applied, for instance to download external resources.
+     */
+    protected void prefetchResources(List<SyncEntry> entries) throws InterruptedException {
+    }
+
+    protected void pushEntries() throws Exceptions.HttpException, IOException, ContactsStorageException, CalendarStorageException, Exceptions.IntegrityException {
         // upload dirty contacts
         int pushed = 0;
         // FIXME: Deal with failure (someone else uploaded before we go here)
@@ -432,6 +653,8 @@ abstract public class SyncManager {
 
     protected void createLocalEntries() throws CalendarStorageException, ContactsStorageException, IOException {
         localEntries = new LinkedList<>();
+        moreLocalEntries = true;
+        long bytes = 0;
 
         // Not saving, just creating a fake one until we load it from a local db
         JournalEntryManager.Entry previousEntry = (remoteCTag != null) ? JournalEntryManager.Entry.getFakeWithUid(remoteCTag) : null;
@@ -443,7 +666,8 @@ abstract public class SyncManager {
             previousEntry = tmp;
             localEntries.add(previousEntry);
 
-            if (localEntries.size() == MAX_PUSH) {
+            bytes += previousEntry.getContentSize();
+            if ((localEntries.size() == MAX_PUSH) || (bytes >= MAX_PAGE_BYTES)) {
                 return;
             }
         }
@@ -462,10 +686,12 @@ abstract public class SyncManager {
             previousEntry = tmp;
             localEntries.add(previousEntry);
 
-            if (localEntries.size() == MAX_PUSH) {
+            bytes += previousEntry.getContentSize();
+            if ((localEntries.size() == MAX_PUSH) || (bytes >= MAX_PAGE_BYTES)) {
                 return;
             }
         }
+        moreLocalEntries = false;
     }
 
     /**
@@ -480,6 +706,228 @@ abstract public class SyncManager {
     }
 
 
+    /**
+     * @return whether the local collection was emptied behind our back (e.g. the contacts/calendar storage was
+     * cleared) while the journal cache still has its content
+     */
+    private boolean needsRebuild() throws CalendarStorageException, ContactsStorageException {
+        return localDeleted.isEmpty() && (localDirty.length == 0) && (localCollection.count() == 0) && hasLatestState();
+    }
+
+    /**
+     * @return whether the latest state of the journal cache has any resources, which isn't the case for journals
+     * whose resources have all been deleted. As that takes going over the cached entries, an empty result is
+     * remembered in the journal's metadata until new entries arrive.
+     */
+    private boolean hasLatestState() {
+        JournalMetaEntity meta = getJournalMeta();
+        if (meta.getEntryCount() == 0) {
+            return false;
+        }
+        if ((meta.getEmptyStateUid() != null) && meta.getEmptyStateUid().equals(meta.getLastUid())) {
+            return false;
+        }
+
+        indexEntries();
+        if (!getLatestState().isEmpty()) {
+            return true;
+        }
+
+        meta.setEmptyStateUid(meta.getLastUid());
+        data.update(meta);
+        return false;
+    }
+
+    /**
+     * Recreates the local collection from the cached journal entries, without using the network. Only the
+     * latest state of every resource is applied. The regular fetch that follows then continues from the cached
+     * head, so anything the cache is missing still comes from the server.
+     *
+     * Finally it's checked that the state up to the cached head is complete. Resources which didn't make it are
+     * applied once more, and if that doesn't help either the sync fails rather than continuing past them.
+     */
+    protected void rebuildFromCache() throws IOException, ContactsStorageException, CalendarStorageException, InvalidCalendarException, InterruptedException, Exceptions.IntegrityException {
+        // So the latest state can be found from the columns alone
+        indexEntries();
+
+        Map<String, Integer> expected = getLatestState();
+        List<Integer> ids = new ArrayList<>(expected.values());
+        Collections.sort(ids);
+        if (ids.isEmpty()) {
+            return;
+        }
+        App.log.info("Local collection is empty, restoring " + ids.size() + " resources from the journal cache");
+
+        applyCachedEntries(ids);
+
+        List<Integer> missing = getMissing(expected);
+        if (!missing.isEmpty()) {
+            App.log.warning(missing.size() + " resources weren't restored from the journal cache, retrying");
+            applyCachedEntries(missing);
+
+            missing = getMissing(expected);
+            if (!missing.isEmpty()) {
+                // The collection isn't empty anymore, so have the next sync go over it with a drift check instead
+                JournalMetaEntity meta = getJournalMeta();
+                meta.setLastDriftCheck(0);
+                data.update(meta);
+                throw new Exceptions.IntegrityException("Couldn't restore " + missing.size() + " of " + ids.size() + " resources from the journal cache");
+            }
+        }
+        App.log.info("Restored all " + ids.size() + " resources up to " + getJournalEntity().getLastUid(data));
+    }
+
+    private boolean needsDriftCheck() {
+        if (getJournalMeta().getEntryCount() == 0) {
+            // Nothing to compare with
+            return false;
+        }
+        return extras.getBoolean(SYNC_EXTRAS_DRIFT_CHECK) ||
+                (System.currentTimeMillis() - getJournalMeta().getLastDriftCheck() >= DRIFT_CHECK_INTERVAL);
+    }
+
+    /**
+     * Compares the resources in the local collection with the latest state in the journal cache, and repairs the
+     * differences: resources missing locally are applied again from their cached entry, and resources which
+     * only exist locally are removed. Only presence is compared, as the local rows can't be compared with the
+     * journal content without fully loading and serializing them. Resources with pending local changes are left
+     * alone, as they are about to be pushed.
+     *
+     * Removing local resources can't be undone, so extra resources are only reported (in the journal's metadata)
+     * by the scheduled checks, and only removed by checks requested with {@link #SYNC_EXTRAS_DRIFT_CHECK}.
+     */
+    protected void checkDrift() throws IOException, ContactsStorageException, CalendarStorageException, InvalidCalendarException, InterruptedException {
+        indexEntries();
+
+        Map<String, Integer> expected = getLatestState();
+        Set<String> present = localCollection.getUids();
+
+        Set<String> pending = new HashSet<>();
+        for (LocalResource local : localDeleted) {
+            pending.add(local.getUuid());
+        }
+        for (LocalResource local : localDirty) {
+            pending.add(local.getUuid());
+        }
+
+        List<Integer> missing = getMissing(expected, present, pending);
+        List<String> extra = new ArrayList<>();
+        for (String uid : present) {
+            if (!expected.containsKey(uid) && !pending.contains(uid)) {
+                extra.add(uid);
+            }
+        }
+
+        App.log.info("Drift check: " + expected.size() + " resources in the journal, " + present.size() + " locally, " +
+                missing.size() + " missing, " + extra.size() + " extra");
+
+        if (!missing.isEmpty()) {
+            applyCachedEntries(missing);
+        }
+        int extraCount = extra.size();
+        if (!extra.isEmpty() && !extras.getBoolean(SYNC_EXTRAS_DRIFT_CHECK)) {
+            App.log.warning("Not removing extra resources in a scheduled check, only when requested");
+            extra.clear();
+        } else if (extraCount > Math.max(present.size() / MAX_DRIFT_EXTRA_SHARE, 1)) {
+            // More likely a problem with the check than with the data, don't risk wiping the collection
+            App.log.warning("Too many extra resources, not removing them");
+            extra.clear();
+        }
+        for (String uid : extra) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LocalResource local = localCollection.getByUid(uid);
+            if (local != null) {
+                App.log.info("Removing local record #" + local.getId() + " which isn't in the journal");
+                local.delete();
+            } else {
+                App.log.warning("Can't remove " + uid + " which isn't in the journal");
+            }
+        }
+
+        JournalMetaEntity meta = getJournalMeta();
+        meta.setLastDriftCheck(System.currentTimeMillis());
+        meta.setDriftMissing(missing.size());
+        meta.setDriftExtra(extraCount);
+        data.update(meta);
+    }
+
+    private List<Integer> getMissing(Map<String, Integer> expected) throws CalendarStorageException, ContactsStorageException {
+        return getMissing(expected, localCollection.getUids(), Collections.<String>emptySet());
+    }
+
+    /**
+     * @return the ids of the cached entries of the expected resources which aren't present locally (and not pending)
+     */
+    private static List<Integer> getMissing(Map<String, Integer> expected, Set<String> present, Set<String> pending) {
+        List<Integer> missing = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            if (!present.contains(entry.getKey()) && !pending.contains(entry.getKey())) {
+                missing.add(entry.getValue());
+            }
+        }
+        Collections.sort(missing);
+        return missing;
+    }
+
+    /**
+     * Applies the given cached entries to the local collection, in batches.
+     */
+    private void applyCachedEntries(List<Integer> ids) throws IOException, ContactsStorageException, CalendarStorageException, InvalidCalendarException, InterruptedException {
+        for (int start = 0 ; start < ids.size() ; start += REBUILD_BATCH_SIZE) {
+            List<Integer> batch = ids.subList(start, Math.min(start + REBUILD_BATCH_SIZE, ids.size()));
+
+            List<SyncEntry> cEntries = new ArrayList<>(batch.size());
+            for (EntryEntity entry : data.select(EntryEntity.class).where(EntryEntity.ID.in(batch)).orderBy(EntryEntity.ID.asc()).get()) {
+                cEntries.add(entry.getContent());
+            }
+            prefetchResources(cEntries);
+
+            for (SyncEntry cEntry : cEntries) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                processSyncEntry(cEntry);
+            }
+        }
+    }
+
+    /**
+     * @return the id of the last entry of every resource that wasn't deleted, by resource UID
+     */
+    private Map<String, Integer> getLatestState() {
+        Map<String, Integer> latest = new HashMap<>();
+        Result<EntryEntity> result = data.select(EntryEntity.class, EntryEntity.ID, EntryEntity.RESOURCE_UID, EntryEntity.ACTION)
+                .where(EntryEntity.JOURNAL.eq(getJournalEntity())).orderBy(EntryEntity.ID.asc()).get();
+        try {
+            for (EntryEntity entry : result) {
+                String uid = entry.getResourceUid();
+                SyncEntry.Actions action = entry.getAction();
+                if (action == null) {
+                    // Indexing failed, take it from the content
+                    SyncEntry cEntry = data.findByKey(EntryEntity.class, entry.getId()).getContent();
+                    uid = cEntry.getResourceUid();
+                    action = cEntry.getAction();
+                }
+                if (uid == null) {
+                    // Can't be tied to a resource, and wouldn't be applicable without its UID anyway
+                    continue;
+                }
+
+                if (action == SyncEntry.Actions.DELETE) {
+                    latest.remove(uid);
+                } else {
+                    latest.put(uid, entry.getId());
+                }
+            }
+        } finally {
+            result.close();
+        }
+
+        return latest;
+    }
+
     /**
      * Delete unpublished locally deleted, and return the rest.
      * Checks Thread.interrupted() before each request to allow quick sync cancellation.
@@ -459,6 +459,10 @@ public class AccountActivity extends BaseActivity implements Toolbar.OnMenuItemC
     }
 
     protected static void requestSync(Account account) {
+        requestSync(account, Bundle.EMPTY);
+    }
+
+    protected static void requestSync(Account account, Bundle baseExtras) {
         String authorities[] = {
                 App.getAddressBooksAuthority(),
                 CalendarContract.AUTHORITY,
@@ -466,7 +470,7 @@ public class AccountActivity extends BaseActivity implements Toolbar.OnMenuItemC
         };
 
         for (String authority : authorities) {
-            Bundle extras = new Bundle();
+            Bundle extras = new Bundle(baseExtras);
             extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);        // manual sync
             extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);     // run immediately (don't queue)
             ContentResolver.requestSync(account, authority, extras);
@@ -20,7 +20,6 @@ import android.support.v7.preference.SwitchPreferenceCompat;
 
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.R;
-import com.etesync.syncadapter.model.ServiceDB;
 import com.etesync.syncadapter.model.Settings;
 import com.etesync.syncadapter.utils.HintManager;
 import com.etesync.syncadapter.utils.LanguageUtils;
@@ -44,7 +43,6 @@ public class AppSettingsActivity extends BaseActivity {
 
 
     public static class SettingsFragment extends PreferenceFragmentCompat {
-        ServiceDB.OpenHelper dbHelper;
         Settings settings;
 
         Preference
@@ -61,18 +59,11 @@ public class AppSettingsActivity extends BaseActivity {
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
-            dbHelper = new ServiceDB.OpenHelper(getContext());
-            settings = new Settings(dbHelper.getReadableDatabase());
+            settings = Settings.getInstance(getContext());
 
             super.onCreate(savedInstanceState);
         }
 
-        @Override
-        public void onDestroy() {
-            super.onDestroy();
-            dbHelper.close();
-        }
-
         @Override
         public void onCreatePreferences(Bundle bundle, String s) {
             addPreferencesFromResource(R.xml.settings_app);
@@ -85,6 +76,7 @@ public class AppSettingsActivity extends BaseActivity {
                 @Override
                 public boolean onPreferenceChange(Preference preference, Object newValue) {
                     settings.putBoolean(App.OVERRIDE_PROXY, (boolean)newValue);
+                    reinitHttpClients();
                     return true;
                 }
             });
@@ -105,6 +97,7 @@ public class AppSettingsActivity extends BaseActivity {
                     }
                     settings.putString(App.OVERRIDE_PROXY_HOST, host);
                     prefProxyHost.setSummary(host);
+                    reinitHttpClients();
                     return true;
                 }
             });
@@ -125,6 +118,7 @@ public class AppSettingsActivity extends BaseActivity {
                     settings.putInt(App.OVERRIDE_PROXY_PORT, port);
                     prefProxyPort.setText(String.valueOf(port));
                     prefProxyPort.setSummary(String.valueOf(port));
+                    reinitHttpClients();
                     return true;
                 }
             });
@@ -166,30 +160,38 @@ public class AppSettingsActivity extends BaseActivity {
         }
 
         private void setDistrustSystemCerts(boolean distrust) {
+            // re-initializes the certificate manager
             settings.putBoolean(App.DISTRUST_SYSTEM_CERTIFICATES, distrust);
 
-            // re-initialize certificate manager
             App app = (App)getContext().getApplicationContext();
-            app.reinitCertManager();
+            // sessions established while system certificates were trusted mustn't be resumed
+            app.clearSslSessionCache();
 
-            // reinitialize certificate manager of :sync process
-            getContext().sendBroadcast(new Intent(App.ReinitSettingsReceiver.ACTION_REINIT_SETTINGS));
+            // reinitialize certificate manager and drop the TLS sessions of :sync process
+            App.ReinitSettingsReceiver.send(getContext(), true);
+        }
+
+        private void reinitHttpClients() {
+            // HTTP clients of this process are reinitialized by the setting change, those of :sync process
+            // when it reloads the settings
+            App.ReinitSettingsReceiver.send(getContext());
         }
 
         private void resetCertificates() {
-            ((App)getContext().getApplicationContext()).getCertManager().resetCertificates();
+            App app = (App)getContext().getApplicationContext();
+            app.getCertManager().resetCertificates();
+            app.clearSslSessionCache();
+            // :sync process has its own certificate manager and sessions
+            App.ReinitSettingsReceiver.send(getContext(), true);
             Snackbar.make(getView(), getString(R.string.app_settings_reset_certificates_success), Snackbar.LENGTH_LONG).show();
         }
 
         private void setExternalLogging(boolean externalLogging) {
+            // reinitializes the logger of the default process
             settings.putBoolean(App.LOG_TO_EXTERNAL_STORAGE, externalLogging);
 
-            // reinitialize logger of default process
-            App app = (App) getContext().getApplicationContext();
-            app.reinitLogger();
-
             // reinitialize logger of :sync process
-            getContext().sendBroadcast(new Intent(App.ReinitSettingsReceiver.ACTION_REINIT_SETTINGS));
+            App.ReinitSettingsReceiver.send(getContext());
         }
 
         private class LanguageTask extends AsyncTask<Void, Void, LanguageUtils.LocaleList> {
@@ -30,18 +30,22 @@ import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.etesync.syncadapter.AccountSettings;
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.BuildConfig;
 import com.etesync.syncadapter.InvalidAccountException;
 import com.etesync.syncadapter.R;
+import com.etesync.syncadapter.SSLSocketFactoryCompat;
 import com.etesync.syncadapter.journalmanager.Exceptions.HttpException;
-import com.etesync.syncadapter.model.EntryEntity;
 import com.etesync.syncadapter.model.JournalEntity;
+import com.etesync.syncadapter.model.JournalMetaEntity;
+import com.etesync.syncadapter.model.JournalModel;
 import com.etesync.syncadapter.model.ServiceDB;
 import com.etesync.syncadapter.model.ServiceEntity;
 import com.etesync.syncadapter.resource.LocalAddressBook;
+import com.etesync.syncadapter.syncadapter.SyncManager;
 
 import org.acra.ACRA;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -95,6 +99,14 @@ public class DebugInfoActivity extends BaseActivity implements LoaderManager.Loa
         ACRA.getErrorReporter().removeCustomData("debug_info");
     }
 
+    public void onCheckLocalData(MenuItem item) {
+        Bundle extras = new Bundle(1);
+        extras.putBoolean(SyncManager.SYNC_EXTRAS_DRIFT_CHECK, true);
+        for (Account account : AccountManager.get(this).getAccountsByType(App.getAccountType()))
+            AccountActivity.requestSync(account, extras);
+        Toast.makeText(this, R.string.debug_info_checking_local_data, Toast.LENGTH_LONG).show();
+    }
+
     @Override
     public Loader<String> onCreateLoader(int id, Bundle args) {
         return new ReportLoader(this, args);
@@ -231,6 +243,8 @@ public class DebugInfoActivity extends BaseActivity implements LoaderManager.Loa
                 }
             report.append("\n");
 
+            report.append("TLS SESSIONS (this process)\n").append(SSLSocketFactoryCompat.getStatistics()).append("\n");
+
             report.append("SQLITE DUMP\n");
             ServiceDB.OpenHelper dbHelper = new ServiceDB.OpenHelper(context);
             dbHelper.dump(report);
@@ -248,8 +262,8 @@ public class DebugInfoActivity extends BaseActivity implements LoaderManager.Loa
             List<JournalEntity> journals = data.select(JournalEntity.class).where(JournalEntity.DELETED.eq(false)).get().toList();
             for (JournalEntity journal : journals) {
                 report.append(journal.toString() + "\n");
-                int entryCount = data.count(EntryEntity.class).where(EntryEntity.JOURNAL.eq(journal)).get().value();
-                report.append("\tEntries: " + String.valueOf(entryCount) + "\n\n");
+                JournalMetaEntity meta = JournalModel.JournalMeta.fetch(data, journal);
+                report.append("\t" + ((meta != null) ? meta.toString() : "No metadata") + "\n\n");
             }
             report.append("\n");
 
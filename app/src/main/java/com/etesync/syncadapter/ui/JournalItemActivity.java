@@ -4,10 +4,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
 import android.support.design.widget.TabLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
+import android.support.v4.app.ListFragment;
 import android.support.v4.view.ViewPager;
 import android.text.format.DateFormat;
 import android.text.format.DateUtils;
@@ -15,13 +17,17 @@ import android.text.format.Time;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.Constants;
 import com.etesync.syncadapter.R;
 import com.etesync.syncadapter.model.CollectionInfo;
+import com.etesync.syncadapter.model.EntryEntity;
 import com.etesync.syncadapter.model.JournalEntity;
+import com.etesync.syncadapter.model.JournalModel;
 import com.etesync.syncadapter.model.SyncEntry;
 
 import net.fortuna.ical4j.model.component.VAlarm;
@@ -37,6 +43,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.GregorianCalendar;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 
@@ -124,15 +131,17 @@ public class JournalItemActivity extends BaseActivity implements Refreshable {
         @Override
         public int getCount() {
             // FIXME: Make it depend on info type (only have non-raw for known types)
-            return 2;
+            return 3;
         }
 
         @Override
         public CharSequence getPageTitle(int position) {
             if (position == 0) {
                 return context.getString(R.string.journal_item_tab_main);
-            } else {
+            } else if (position == 1) {
                 return context.getString(R.string.journal_item_tab_raw);
+            } else {
+                return context.getString(R.string.journal_item_tab_history);
             }
         }
 
@@ -140,8 +149,95 @@ public class JournalItemActivity extends BaseActivity implements Refreshable {
         public Fragment getItem(int position) {
             if (position == 0) {
                 return PrettyFragment.newInstance(info, syncEntry);
-            } else {
+            } else if (position == 1) {
                 return TextFragment.newInstance(syncEntry);
+            } else {
+                return HistoryFragment.newInstance(info, syncEntry);
+            }
+        }
+    }
+
+    /**
+     * All the cached entries about the same contact/event/task, most recent first.
+     */
+    public static class HistoryFragment extends ListFragment implements AdapterView.OnItemClickListener {
+        private CollectionInfo info;
+        private AsyncTask asyncTask;
+
+        public static HistoryFragment newInstance(CollectionInfo info, SyncEntry syncEntry) {
+            HistoryFragment frag = new HistoryFragment();
+            Bundle args = new Bundle(2);
+            args.putSerializable(Constants.KEY_COLLECTION_INFO, info);
+            args.putSerializable(KEY_SYNC_ENTRY, syncEntry);
+            frag.setArguments(args);
+            return frag;
+        }
+
+        @Override
+        public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+            info = (CollectionInfo) getArguments().getSerializable(Constants.KEY_COLLECTION_INFO);
+            return inflater.inflate(R.layout.journal_viewer_list, container, false);
+        }
+
+        @Override
+        public void onViewCreated(View view, Bundle savedInstanceState) {
+            super.onViewCreated(view, savedInstanceState);
+
+            SyncEntry syncEntry = (SyncEntry) getArguments().getSerializable(KEY_SYNC_ENTRY);
+            asyncTask = new LoadHistoryTask(view, syncEntry.getResourceUid()).execute();
+
+            getListView().setOnItemClickListener(this);
+        }
+
+        @Override
+        public void onDestroyView() {
+            super.onDestroyView();
+            if (asyncTask != null)
+                asyncTask.cancel(true);
+        }
+
+        @Override
+        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            EntryEntity entry = (EntryEntity) getListAdapter().getItem(position);
+            startActivity(JournalItemActivity.newIntent(getContext(), info, entry.getContent()));
+        }
+
+        private class LoadHistoryTask extends AsyncTask<Void, Void, List<EntryEntity>> {
+            View view;
+            String resourceUid;
+            LoadHistoryTask(View v, String resourceUid) {
+                super();
+                view = v;
+                this.resourceUid = resourceUid;
+            }
+
+            @Override
+            protected List<EntryEntity> doInBackground(Void... aVoids) {
+                EntityDataStore<Persistable> data = ((App) getContext().getApplicationContext()).getData();
+                JournalEntity journalEntity = JournalEntity.fetch(data, info.getServiceEntity(data), info.uid);
+                if ((journalEntity == null) || (resourceUid == null)) {
+                    return new LinkedList<>();
+                }
+                return JournalModel.Entry.getHistory(data, journalEntity, resourceUid);
+            }
+
+            @Override
+            protected void onPostExecute(List<EntryEntity> result) {
+                ArrayAdapter<EntryEntity> adapter = new ArrayAdapter<EntryEntity>(getContext(), R.layout.journal_viewer_list_item) {
+                    @Override
+                    @NonNull
+                    public View getView(int position, View v, @NonNull ViewGroup parent) {
+                        if (v == null)
+                            v = LayoutInflater.from(getContext()).inflate(R.layout.journal_viewer_list_item, parent, false);
+                        setJournalEntryView(v, getItem(position));
+                        return v;
+                    }
+                };
+                adapter.addAll(result);
+                setListAdapter(adapter);
+
+                TextView emptyTextView = (TextView) view.findViewById(android.R.id.empty);
+                emptyTextView.setText(getString(R.string.journal_entries_list_empty));
             }
         }
     }
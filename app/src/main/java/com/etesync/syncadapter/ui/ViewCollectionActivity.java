@@ -23,12 +23,15 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.R;
 import com.etesync.syncadapter.model.CollectionInfo;
 import com.etesync.syncadapter.model.EntryEntity;
 import com.etesync.syncadapter.model.JournalEntity;
+import com.etesync.syncadapter.model.JournalMetaEntity;
+import com.etesync.syncadapter.model.JournalModel;
 import com.etesync.syncadapter.resource.LocalAddressBook;
 import com.etesync.syncadapter.resource.LocalCalendar;
 import com.etesync.syncadapter.ui.importlocal.ImportActivity;
@@ -37,6 +40,7 @@ import com.etesync.syncadapter.utils.HintManager;
 import com.etesync.syncadapter.utils.ShowcaseBuilder;
 
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 import java.util.Locale;
 
 import at.bitfire.ical4android.CalendarStorageException;
@@ -55,6 +59,8 @@ public class ViewCollectionActivity extends BaseActivity implements Refreshable
     private JournalEntity journalEntity;
     protected CollectionInfo info;
     private boolean isOwner;
+    /* Retention policy of the journal, null until it has been synced */
+    private Integer retainEntries;
 
     public static Intent newIntent(Context context, Account account, CollectionInfo info) {
         Intent intent = new Intent(context, ViewCollectionActivity.class);
@@ -198,8 +204,54 @@ public class ViewCollectionActivity extends BaseActivity implements Refreshable
         }
     }
 
+    public void onHistory(MenuItem item) {
+        if (retainEntries == null) {
+            Toast.makeText(this, R.string.view_collection_history_not_synced, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final String[] values = getResources().getStringArray(R.array.view_collection_history_entries);
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.view_collection_history_title)
+                .setSingleChoiceItems(R.array.view_collection_history_names, Arrays.asList(values).indexOf(String.valueOf(retainEntries)),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                dialog.dismiss();
+                                new SetRetentionTask(Integer.parseInt(values[which])).execute();
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel, null).create();
+        dialog.show();
+    }
+
+    private class SetRetentionTask extends AsyncTask<Void, Void, Void> {
+        private final int retain;
+
+        SetRetentionTask(int retain) {
+            this.retain = retain;
+        }
+
+        @Override
+        protected Void doInBackground(Void... aVoids) {
+            EntityDataStore<Persistable> data = ((App) getApplicationContext()).getData();
+
+            // Only this column, the rest of the metadata is maintained by the sync process. It compacts the journal
+            // accordingly after the next sync.
+            data.update(JournalMetaEntity.class).set(JournalMetaEntity.RETAIN_ENTRIES, retain)
+                    .where(JournalMetaEntity.JOURNAL.eq(journalEntity)).get().value();
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void aVoid) {
+            retainEntries = retain;
+        }
+    }
+
     private class LoadCountTask extends AsyncTask<Void, Void, Long> {
         private int entryCount;
+        private Integer retain;
 
         @Override
         protected Long doInBackground(Void... aVoids) {
@@ -207,7 +259,14 @@ public class ViewCollectionActivity extends BaseActivity implements Refreshable
 
             final JournalEntity journalEntity = JournalEntity.fetch(data, info.getServiceEntity(data), info.uid);
 
-            entryCount = data.count(EntryEntity.class).where(EntryEntity.JOURNAL.eq(journalEntity)).get().value();
+            // Only read here, the metadata is created by the sync process
+            JournalMetaEntity meta = JournalModel.JournalMeta.fetch(data, journalEntity);
+            if (meta != null) {
+                entryCount = meta.getEntryCount();
+                retain = meta.getRetainEntries();
+            } else {
+                entryCount = data.count(EntryEntity.class).where(EntryEntity.JOURNAL.eq(journalEntity)).get().value();
+            }
             long count;
 
             if (info.type == CollectionInfo.Type.CALENDAR) {
@@ -242,6 +301,8 @@ public class ViewCollectionActivity extends BaseActivity implements Refreshable
 
         @Override
         protected void onPostExecute(Long result) {
+            retainEntries = retain;
+
             final TextView stats = (TextView) findViewById(R.id.stats);
             findViewById(R.id.progressBar).setVisibility(View.GONE);
 
@@ -9,11 +9,15 @@
 package com.etesync.syncadapter.ui.journalviewer;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ListFragment;
+import android.support.v7.widget.SearchView;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -25,18 +29,23 @@ import com.etesync.syncadapter.App;
 import com.etesync.syncadapter.R;
 import com.etesync.syncadapter.model.CollectionInfo;
 import com.etesync.syncadapter.model.EntryEntity;
+import com.etesync.syncadapter.model.EntryIndex;
 import com.etesync.syncadapter.model.JournalEntity;
 import com.etesync.syncadapter.model.JournalModel;
 import com.etesync.syncadapter.model.SyncEntry;
 import com.etesync.syncadapter.ui.JournalItemActivity;
 
+import java.util.LinkedList;
 import java.util.List;
 
 import io.requery.Persistable;
+import io.requery.query.Result;
+import io.requery.query.WhereAndOr;
 import io.requery.sql.EntityDataStore;
 
-public class ListEntriesFragment extends ListFragment implements AdapterView.OnItemClickListener {
+public class ListEntriesFragment extends ListFragment implements AdapterView.OnItemClickListener, SearchView.OnQueryTextListener {
     protected static final String EXTRA_COLLECTION_INFO = "collectionInfo";
+    private static final int MAX_SEARCH_RESULTS = 500;
 
     private EntityDataStore<Persistable> data;
     private CollectionInfo info;
@@ -58,6 +67,27 @@ public class ListEntriesFragment extends ListFragment implements AdapterView.OnI
         super.onCreate(savedInstanceState);
         data = ((App) getContext().getApplicationContext()).getData();
         info = (CollectionInfo) getArguments().getSerializable(EXTRA_COLLECTION_INFO);
+        setHasOptionsMenu(true);
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        inflater.inflate(R.menu.journal_viewer_list, menu);
+        SearchView searchView = (SearchView) menu.findItem(R.id.search).getActionView();
+        searchView.setOnQueryTextListener(this);
+    }
+
+    @Override
+    public boolean onQueryTextSubmit(String query) {
+        return onQueryTextChange(query);
+    }
+
+    @Override
+    public boolean onQueryTextChange(String query) {
+        if (asyncTask != null)
+            asyncTask.cancel(true);
+        asyncTask = new JournalFetch(query.trim().isEmpty() ? null : query).execute();
+        return true;
     }
 
     @Override
@@ -75,7 +105,7 @@ public class ListEntriesFragment extends ListFragment implements AdapterView.OnI
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        asyncTask = new JournalFetch().execute();
+        asyncTask = new JournalFetch(null).execute();
 
         getListView().setOnItemClickListener(this);
     }
@@ -104,74 +134,75 @@ public class ListEntriesFragment extends ListFragment implements AdapterView.OnI
             if (v == null)
                 v = LayoutInflater.from(getContext()).inflate(R.layout.journal_viewer_list_item, parent, false);
 
-            EntryEntity entryEntity = getItem(position);
-
-            TextView tv = (TextView) v.findViewById(R.id.title);
-
-            // FIXME: hacky way to make it show sensible info
-            CollectionInfo info = journalEntity.getInfo();
-            setJournalEntryView(v, info, entryEntity.getContent());
+            setJournalEntryView(v, getItem(position));
 
             return v;
         }
     }
 
-    private static String getLine(String content, String prefix) {
-        if (content == null) {
-            return null;
-        }
-
-        int start = content.indexOf(prefix);
-        if (start >= 0) {
-            int end = content.indexOf("\n", start);
-            content = content.substring(start + prefix.length(), end);
+    /**
+     * Shows an entry, using the indexed columns so the content doesn't have to be loaded.
+     */
+    public static void setJournalEntryView(View v, EntryEntity entry) {
+        if (entry.getAction() == null) {
+            // Not indexed yet
+            SyncEntry syncEntry = entry.getContent();
+            setJournalEntryView(v, syncEntry.getSummary(), syncEntry.getResourceUid(), syncEntry.getAction());
         } else {
-            content = null;
+            setJournalEntryView(v, entry.getSummary(), entry.getResourceUid(), entry.getAction());
         }
-        return content;
     }
 
     public static void setJournalEntryView(View v, CollectionInfo info, SyncEntry syncEntry) {
+        setJournalEntryView(v, syncEntry.getSummary(), syncEntry.getResourceUid(), syncEntry.getAction());
+    }
 
+    private static void setJournalEntryView(View v, String summary, String resourceUid, SyncEntry.Actions action) {
         TextView tv = (TextView) v.findViewById(R.id.title);
-
-        // FIXME: hacky way to make it show sensible info
-        String fullContent = syncEntry.getContent();
-        String prefix;
-        if (info.type == CollectionInfo.Type.CALENDAR) {
-            prefix = "SUMMARY:";
-        } else {
-            prefix = "FN:";
-        }
-        String content = getLine(fullContent, prefix);
-        content = (content != null) ? content : "Not found";
-        tv.setText(content);
+        tv.setText((summary != null) ? summary : "Not found");
 
         tv = (TextView) v.findViewById(R.id.description);
-        content = getLine(fullContent, "UID:");
-        content = "UID: " + ((content != null) ? content : "Not found");
-        tv.setText(content);
+        tv.setText("UID: " + ((resourceUid != null) ? resourceUid : "Not found"));
 
-        ImageView action = (ImageView) v.findViewById(R.id.action);
-        switch (syncEntry.getAction()) {
+        ImageView actionView = (ImageView) v.findViewById(R.id.action);
+        switch (action) {
             case ADD:
-                action.setImageResource(R.drawable.action_add);
+                actionView.setImageResource(R.drawable.action_add);
                 break;
             case CHANGE:
-                action.setImageResource(R.drawable.action_change);
+                actionView.setImageResource(R.drawable.action_change);
                 break;
             case DELETE:
-                action.setImageResource(R.drawable.action_delete);
+                actionView.setImageResource(R.drawable.action_delete);
                 break;
         }
     }
 
     private class JournalFetch extends AsyncTask<Void, Void, List<EntryEntity>> {
+        private final String query;
+
+        JournalFetch(String query) {
+            this.query = query;
+        }
 
         @Override
         protected List<EntryEntity> doInBackground(Void... voids) {
             journalEntity = JournalModel.Journal.fetch(data, info.getServiceEntity(data), info.uid);
-            return data.select(EntryEntity.class).where(EntryEntity.JOURNAL.eq(journalEntity)).orderBy(EntryEntity.ID.desc()).get().toList();
+            // The content is only loaded when needed (not indexed yet, or opened)
+            WhereAndOr<Result<EntryEntity>> where = data.select(EntryEntity.class, EntryEntity.ID, EntryEntity.UID, EntryEntity.RESOURCE_UID, EntryEntity.ACTION, EntryEntity.SUMMARY, EntryEntity.JOURNAL)
+                    .where(EntryEntity.JOURNAL.eq(journalEntity));
+
+            if (query != null) {
+                SQLiteDatabase db = ((App) getContext().getApplicationContext()).getWritableDatabase();
+                // Only searched here, the index is updated by the sync process after every sync
+                List<Integer> ids = EntryIndex.search(db, journalEntity.getId(), query, MAX_SEARCH_RESULTS);
+                if (ids.isEmpty()) {
+                    return new LinkedList<>();
+                }
+                where = where.and(EntryEntity.ID.in(ids));
+            }
+
+            return where.orderBy(EntryEntity.ID.desc()).get().toList();
         }
 
         @Override
@@ -181,7 +212,7 @@ public class ListEntriesFragment extends ListFragment implements AdapterView.OnI
 
             listAdapter.addAll(result);
 
-            emptyTextView.setText(getString(R.string.journal_entries_list_empty));
+            emptyTextView.setText(getString((query != null) ? R.string.journal_entries_search_empty : R.string.journal_entries_list_empty));
         }
     }
 }
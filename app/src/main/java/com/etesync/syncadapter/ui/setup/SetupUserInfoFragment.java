@@ -94,7 +94,7 @@ public class SetupUserInfoFragment extends DialogFragment {
 
                 if (userInfo == null) {
                     App.log.info("Creating userInfo for " + account.name);
-                    cryptoManager = new Crypto.CryptoManager(Constants.CURRENT_VERSION, settings.password(), "userInfo");
+                    cryptoManager = new Crypto.CryptoManager(Constants.CREATE_VERSION, settings.password(), "userInfo");
                     userInfo = UserInfoManager.UserInfo.generate(cryptoManager, account.name);
                     userInfoManager.create(userInfo);
                 } else {
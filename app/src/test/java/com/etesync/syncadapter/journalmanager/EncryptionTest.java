@@ -17,9 +17,11 @@ import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.IOException;
+import java.util.zip.Deflater;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class EncryptionTest {
     @Before
@@ -60,6 +62,45 @@ public class EncryptionTest {
         assertEquals(expected, Base64.encodeToString(cryptoManager.hmac("Some test data".getBytes(Charsets.UTF_8)), Base64.NO_WRAP));
     }
 
+    @Test(expected = Exceptions.IntegrityException.class)
+    public void testCryptoV3BadPayloadFlag() throws Exceptions.IntegrityException, Exceptions.GenericCryptoException {
+        Crypto.CryptoManager cryptoManager = new Crypto.CryptoManager(3, Helpers.keyBase64, "TestSaltShouldBeJournalId");
+        cryptoManager.decryptPayload(cryptoManager.encrypt(new byte[] { 0x7F, 'a' }));
+    }
+
+    @Test
+    public void testCryptoV3Payload() throws Exceptions.IntegrityException, Exceptions.GenericCryptoException {
+        Crypto.CryptoManager cryptoManager = new Crypto.CryptoManager(3, Helpers.keyBase64, "TestSaltShouldBeJournalId");
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0 ; i < 100 ; i++) {
+            builder.append("BEGIN:VCARD\nVERSION:4.0\nFN:Test\nEND:VCARD\n");
+        }
+        byte[] clearText = builder.toString().getBytes(Charsets.UTF_8);
+
+        // Compressed payloads (as other clients may write them) are read
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(clearText);
+        deflater.finish();
+        byte[] buf = new byte[clearText.length];
+        int len = deflater.deflate(buf);
+        deflater.end();
+        byte[] compressed = new byte[len + 1];
+        compressed[0] = 1;
+        System.arraycopy(buf, 0, compressed, 1, len);
+        assertArrayEquals(clearText, cryptoManager.decryptPayload(cryptoManager.encrypt(compressed)));
+
+        // But we write them uncompressed
+        byte[] cipher = cryptoManager.encryptPayload(clearText);
+        assertTrue(cipher.length > clearText.length);
+        assertArrayEquals(clearText, cryptoManager.decryptPayload(cipher));
+
+        // Older versions keep the old format
+        Crypto.CryptoManager cryptoManagerV2 = new Crypto.CryptoManager(2, Helpers.keyBase64, "TestSaltShouldBeJournalId");
+        cipher = cryptoManagerV2.encryptPayload(clearText);
+        assertArrayEquals(clearText, cryptoManagerV2.decrypt(cipher));
+    }
+
     @Test(expected=Exceptions.VersionTooNewException.class)
     public void testCryptoVersionTooNew() throws Exceptions.IntegrityException, Exceptions.VersionTooNewException {
         new Crypto.CryptoManager(120, Helpers.keyBase64, "TestSaltShouldBeJournalId");
@@ -0,0 +1,273 @@
+package com.etesync.syncadapter.journalmanager;
+
+import com.etesync.syncadapter.GsonHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalEntryManagerTest {
+    private MockWebServer server;
+    private OkHttpClient httpClient;
+    private HttpUrl remote;
+    private Crypto.CryptoManager crypto;
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        httpClient = new OkHttpClient();
+        remote = server.url("/");
+        crypto = new Crypto.CryptoManager(Constants.CURRENT_VERSION, Helpers.keyBase64, "TestSaltShouldBeJournalId");
+        JournalEntryManager.resetGzipSupport();
+        JournalEntriesBatchManager.resetUnsupportedHosts();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private List<JournalEntryManager.Entry> createEntries(int count) {
+        List<JournalEntryManager.Entry> entries = new LinkedList<>();
+        JournalEntryManager.Entry previous = null;
+        for (int i = 0 ; i < count ; i++) {
+            JournalEntryManager.Entry entry = new JournalEntryManager.Entry();
+            entry.update(crypto, "Content " + i, previous);
+            entries.add(entry);
+            previous = entry;
+        }
+        return entries;
+    }
+
+    /* A (JSON) listing whose response advertises gzip support, as per RFC 7694 */
+    private void advertiseGzip(JournalEntryManager journalEntryManager) throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Accept-Encoding", "gzip")
+                .setBody("[]"));
+        journalEntryManager.list(crypto, null, 0);
+        server.takeRequest();
+    }
+
+    @Test
+    public void testJsonFallback() throws Exception {
+        List<JournalEntryManager.Entry> entries = createEntries(3);
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody(GsonHelper.gson.toJson(entries)));
+        server.enqueue(new MockResponse().setResponseCode(201));
+
+        JournalEntryManager journalEntryManager = new JournalEntryManager(httpClient, remote, "journal");
+        List<JournalEntryManager.Entry> retEntries = journalEntryManager.list(crypto, null, 0);
+        assertEquals(entries.size(), retEntries.size());
+        assertEquals("Content 2", retEntries.get(2).getContent(crypto));
+        assertFalse(journalEntryManager.isBinarySupported());
+
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getHeader("Accept").contains("application/cbor"));
+
+        journalEntryManager.create(createEntries(1), entries.get(2).getUid());
+        request = server.takeRequest();
+        assertTrue(request.getHeader("Content-Type").startsWith("application/json"));
+    }
+
+    @Test
+    public void testCborNegotiated() throws Exception {
+        List<JournalEntryManager.Entry> entries = createEntries(3);
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/cbor")
+                .setBody(new Buffer().write(JournalEntryManager.toCbor(entries))));
+        server.enqueue(new MockResponse().setResponseCode(201));
+
+        JournalEntryManager journalEntryManager = new JournalEntryManager(httpClient, remote, "journal");
+        List<JournalEntryManager.Entry> retEntries = journalEntryManager.list(crypto, null, 0);
+        assertEquals(entries.size(), retEntries.size());
+        for (int i = 0 ; i < entries.size() ; i++) {
+            assertEquals(entries.get(i).getUid(), retEntries.get(i).getUid());
+            assertArrayEquals(entries.get(i).getContent(), retEntries.get(i).getContent());
+        }
+        assertTrue(journalEntryManager.isBinarySupported());
+        server.takeRequest();
+
+        List<JournalEntryManager.Entry> pushed = createEntries(2);
+        journalEntryManager.create(pushed, entries.get(2).getUid());
+        RecordedRequest request = server.takeRequest();
+        assertEquals("application/cbor", request.getHeader("Content-Type"));
+
+        ResponseBody body = ResponseBody.create(JournalEntryManager.CBOR, request.getBody().readByteArray());
+        List<JournalEntryManager.Entry> decoded = JournalEntryManager.fromCbor(body);
+        assertEquals(pushed.get(1).getUid(), decoded.get(1).getUid());
+        assertEquals("Content 1", decoded.get(1).getContent(crypto));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCborBogusCount() throws Exception {
+        // An array claiming 2^31 - 1 entries, followed by nothing
+        byte[] data = new byte[] { (byte) 0x9A, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+        JournalEntryManager.fromCbor(ResponseBody.create(JournalEntryManager.CBOR, data));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCborBogusStringLength() throws Exception {
+        // An entry (map of one) whose key is a text string claiming 2^31 - 1 bytes, followed by just a few
+        byte[] data = new byte[] { (byte) 0x81, (byte) 0xA1, 0x7A, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 'u', 'i', 'd' };
+        JournalEntryManager.fromCbor(ResponseBody.create(JournalEntryManager.CBOR, data));
+    }
+
+    @Test
+    public void testGzipNotAdvertised() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(201));
+
+        JournalEntryManager journalEntryManager = new JournalEntryManager(httpClient, remote, "journal");
+        journalEntryManager.setCompressRequests(true);
+        journalEntryManager.create(createEntries(1), null);
+
+        RecordedRequest request = server.takeRequest();
+        assertNull(request.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void testGzipFallback() throws Exception {
+        JournalEntryManager journalEntryManager = new JournalEntryManager(httpClient, remote, "journal");
+        journalEntryManager.setCompressRequests(true);
+        advertiseGzip(journalEntryManager);
+
+        // Not necessarily a 415, servers which can't decode the body tend to fail parsing it
+        server.enqueue(new MockResponse().setResponseCode(400));
+        server.enqueue(new MockResponse().setResponseCode(201));
+        server.enqueue(new MockResponse().setResponseCode(201));
+        List<JournalEntryManager.Entry> entries = createEntries(2);
+        journalEntryManager.create(entries, null);
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        request = server.takeRequest();
+        assertNull(request.getHeader("Content-Encoding"));
+        assertEquals(GsonHelper.gson.toJson(entries), request.getBody().readUtf8());
+
+        // Remembered for the host, so no more attempts
+        journalEntryManager.create(createEntries(1), entries.get(1).getUid());
+        request = server.takeRequest();
+        assertNull(request.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void testGzipConflict() throws Exception {
+        JournalEntryManager journalEntryManager = new JournalEntryManager(httpClient, remote, "journal");
+        journalEntryManager.setCompressRequests(true);
+        advertiseGzip(journalEntryManager);
+
+        // Not about the encoding, so neither retried uncompressed nor remembered
+        server.enqueue(new MockResponse().setResponseCode(409));
+        server.enqueue(new MockResponse().setResponseCode(201));
+        try {
+            journalEntryManager.create(createEntries(1), null);
+            fail();
+        } catch (Exceptions.HttpException e) {
+            assertEquals(409, e.status);
+        }
+        RecordedRequest request = server.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+
+        journalEntryManager.create(createEntries(1), null);
+        request = server.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void testSpilledBody() throws Exception {
+        JournalEntryManager journalEntryManager = new JournalEntryManager(httpClient, remote, "journal");
+        journalEntryManager.setCompressRequests(true);
+        advertiseGzip(journalEntryManager);
+        server.enqueue(new MockResponse().setResponseCode(415));
+        server.enqueue(new MockResponse().setResponseCode(201));
+        journalEntryManager.setSpillDirectory(tmpDir.getRoot());
+        journalEntryManager.setSpillThreshold(0);
+        List<JournalEntryManager.Entry> entries = createEntries(2);
+        journalEntryManager.create(entries, null);
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        Buffer unzipped = new Buffer();
+        unzipped.writeAll(new GzipSource(request.getBody()));
+        assertEquals(GsonHelper.gson.toJson(entries), unzipped.readUtf8());
+        request = server.takeRequest();
+        assertEquals(GsonHelper.gson.toJson(entries), request.getBody().readUtf8());
+
+        assertEquals(0, tmpDir.getRoot().list().length);
+    }
+
+    @Test
+    public void testBatchList() throws Exception {
+        List<JournalEntryManager.Entry> entries = createEntries(3);
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody("[{\"journal\": \"journal1\", \"entries\": " + GsonHelper.gson.toJson(entries.subList(1, 3)) + "}," +
+                        "{\"journal\": \"unrequested\", \"entries\": []}]"));
+
+        Map<String, String> lastUids = new HashMap<>();
+        lastUids.put("journal1", entries.get(0).getUid());
+        lastUids.put("journal2", "abcd");
+
+        JournalEntriesBatchManager batchManager = new JournalEntriesBatchManager(httpClient, remote);
+        Map<String, List<JournalEntryManager.Entry>> ret = batchManager.list(lastUids, 50);
+        RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("/api/v1/journals/entries/?limit=50", request.getPath());
+
+        assertEquals(1, ret.size());
+        List<JournalEntryManager.Entry> journal1 = ret.get("journal1");
+        assertEquals(2, journal1.size());
+        JournalEntryManager.verify(crypto, entries.get(0).getUid(), journal1);
+        assertEquals("Content 2", journal1.get(1).getContent(crypto));
+    }
+
+    @Test
+    public void testBatchListUnsupported() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(405));
+
+        Map<String, String> lastUids = new HashMap<>();
+        lastUids.put("journal1", null);
+        JournalEntriesBatchManager batchManager = new JournalEntriesBatchManager(httpClient, remote);
+        assertNull(batchManager.list(lastUids, 50));
+        assertEquals(1, server.getRequestCount());
+
+        // Remembered for the host, so not asked again
+        assertNull(new JournalEntriesBatchManager(httpClient, remote).list(lastUids, 50));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test(expected = Exceptions.IntegrityException.class)
+    public void testVerifyBrokenChain() throws Exception {
+        List<JournalEntryManager.Entry> entries = createEntries(3);
+        JournalEntryManager.verify(crypto, null, entries.subList(1, 3));
+    }
+}
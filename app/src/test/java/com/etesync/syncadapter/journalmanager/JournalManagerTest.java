@@ -0,0 +1,109 @@
+package com.etesync.syncadapter.journalmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalManagerTest {
+    private MockWebServer server;
+    private JournalManager journalManager;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        BaseManager.retryDelay = BaseManager.maxRetryDelay = 1;
+        CircuitBreaker.reset();
+        journalManager = new JournalManager(new OkHttpClient(), server.url("/"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void testListHeads() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody("[{\"journal\": \"aaaa\", \"last\": \"1234\"}, {\"journal\": \"bbbb\", \"last\": null}]"));
+
+        Map<String, String> heads = journalManager.listHeads();
+        assertEquals("/api/v1/journals/heads/", server.takeRequest().getPath());
+        assertEquals(2, heads.size());
+        assertEquals("1234", heads.get("aaaa"));
+        assertTrue(heads.containsKey("bbbb"));
+        assertNull(heads.get("bbbb"));
+    }
+
+    @Test
+    public void testListHeadsUnsupported() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("{\"detail\": \"Not found.\"}"));
+
+        assertNull(journalManager.listHeads());
+    }
+
+    @Test
+    public void testListNotModified() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setHeader("ETag", "\"v1\"")
+                .setBody("[]"));
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        assertEquals(0, journalManager.list(null).size());
+        assertEquals("\"v1\"", journalManager.getLastETag());
+        server.takeRequest();
+
+        assertNull(journalManager.list(journalManager.getLastETag()));
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody("[{\"journal\": \"aaaa\", \"last\": \"1234\"}]"));
+
+        Map<String, String> heads = journalManager.listHeads();
+        assertEquals(3, server.getRequestCount());
+        assertEquals("1234", heads.get("aaaa"));
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        for (int i = 0 ; i < CircuitBreaker.FAILURE_THRESHOLD ; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+
+        try {
+            journalManager.listHeads();
+            fail();
+        } catch (Exceptions.ServiceUnavailableException e) {
+            assertEquals(CircuitBreaker.FAILURE_THRESHOLD, server.getRequestCount());
+        }
+
+        // The circuit is open, so the server isn't even asked
+        try {
+            journalManager.listHeads();
+            fail();
+        } catch (Exceptions.ServiceUnavailableException e) {
+            assertTrue(e.retryAfter > 0);
+            assertEquals(CircuitBreaker.FAILURE_THRESHOLD, server.getRequestCount());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.etesync.syncadapter.model;
+
+import com.etesync.syncadapter.utils.Base64;
+
+import org.apache.commons.codec.Charsets;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncEntryCodecTest {
+    private static final String VCARD = "BEGIN:VCARD\r\nVERSION:4.0\r\nUID:golden\r\nFN:Golden Test\r\nEND:VCARD\r\n";
+    private static final String ICALENDAR = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nBEGIN:VEVENT\r\nUID:golden\r\n" +
+            "SUMMARY:Golden Test\r\nEND:VEVENT\r\nEND:VCALENDAR\r\n";
+
+    private static void assertRoundTrip(SyncEntry entry) {
+        SyncEntry decoded = SyncEntryCodec.decode(SyncEntryCodec.encode(entry));
+        assertEquals(entry.getContent(), decoded.getContent());
+        assertEquals(entry.getAction(), decoded.getAction());
+    }
+
+    @Test
+    public void testVCard() {
+        SyncEntry entry = new SyncEntry(VCARD, SyncEntry.Actions.ADD);
+        byte[] encoded = SyncEntryCodec.encode(entry);
+        assertEquals(0x02, encoded[0]);
+        assertTrue(encoded.length < entry.toJson().length());
+        assertRoundTrip(entry);
+    }
+
+    @Test
+    public void testICalendar() {
+        SyncEntry entry = new SyncEntry(ICALENDAR, SyncEntry.Actions.CHANGE);
+        assertEquals(0x03, SyncEntryCodec.encode(entry)[0]);
+        assertRoundTrip(entry);
+    }
+
+    @Test
+    public void testOtherContent() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0 ; i < 20 ; i++) {
+            builder.append("Some other content\n");
+        }
+        SyncEntry entry = new SyncEntry(builder.toString(), SyncEntry.Actions.DELETE);
+        assertEquals(0x01, SyncEntryCodec.encode(entry)[0]);
+        assertRoundTrip(entry);
+    }
+
+    @Test
+    public void testIncompressible() {
+        byte[] random = new byte[256];
+        new Random(1).nextBytes(random);
+        assertRoundTrip(new SyncEntry(new String(random, Charsets.ISO_8859_1), SyncEntry.Actions.ADD));
+    }
+
+    @Test
+    public void testNoContent() {
+        SyncEntry entry = new SyncEntry(null, SyncEntry.Actions.DELETE);
+        // Kept as JSON
+        assertEquals('{', SyncEntryCodec.encode(entry)[0]);
+        assertRoundTrip(entry);
+    }
+
+    @Test
+    public void testLegacyJson() {
+        SyncEntry entry = new SyncEntry(VCARD, SyncEntry.Actions.CHANGE);
+        SyncEntry decoded = SyncEntryCodec.decode(entry.toJson().getBytes(Charsets.UTF_8));
+        assertEquals(VCARD, decoded.getContent());
+        assertEquals(SyncEntry.Actions.CHANGE, decoded.getAction());
+    }
+
+    @Test
+    public void testStoredRows() {
+        // Written with the dictionaries as they are, which existing rows depend on
+        SyncEntry vCard = SyncEntryCodec.decode(Base64.decode("AkF4+foXXyHDqgwsAzImPT8nJTUPbK47mKkQklpcgmItAD4QEXI=", Base64.NO_WRAP));
+        assertEquals(VCARD, vCard.getContent());
+        assertEquals(SyncEntry.Actions.ADD, vCard.getAction());
+
+        SyncEntry iCalendar = SyncEntryCodec.decode(Base64.decode("A0F4+VTtxIPDcBc2V0NdArI/PT8nJTUP4Qp3MF8hJLW4BNXZaP4DALOTG9g=", Base64.NO_WRAP));
+        assertEquals(ICALENDAR, iCalendar.getContent());
+        assertEquals(SyncEntry.Actions.ADD, iCalendar.getAction());
+    }
+}